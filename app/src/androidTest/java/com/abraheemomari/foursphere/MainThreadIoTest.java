@@ -0,0 +1,172 @@
+package com.abraheemomari.foursphere;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.StrictMode;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the load, search and snapshot paths from the main thread under a StrictMode policy
+ * that kills the process on any disk read or write there, so I/O creeping back onto it fails the run
+ */
+@RunWith(AndroidJUnit4.class)
+public class MainThreadIoTest {
+
+    //Somewhere in the Gulf of Guinea, far from any venue a real load caches
+    private static final double LATITUDE = 0.5;
+    private static final double LONGITUDE = 0.5;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private Context context;
+    private StrictMode.ThreadPolicy oldPolicy;
+    private final VenueColumns venues = new VenueColumns();
+
+    @Before
+    public void setUp() throws InterruptedException {
+        context = InstrumentationRegistry.getTargetContext();
+        venues.add("strictmode-1", "Blue Bottle Coffee", LATITUDE, LONGITUDE, "Coffee Shop", VenueColumns.OPEN, "");
+        venues.add("strictmode-2", "Tartine Bakery", LATITUDE + 0.001, LONGITUDE, "Bakery", VenueColumns.CLOSED, "");
+
+        //Seed the cache the paths below read from
+        final CountDownLatch upserted = new CountDownLatch(1);
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                Database.getInstance(context).upsertVenues(venues, new Database.upsertListener() {
+                    @Override
+                    public void venuesUpserted(Database.UpsertResult result) {
+                        upserted.countDown();
+                    }
+                });
+            }
+        });
+        await(upserted);
+
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                oldPolicy = StrictMode.getThreadPolicy();
+                StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                        .detectDiskReads()
+                        .detectDiskWrites()
+                        .penaltyLog()
+                        .penaltyDeath()
+                        .build());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                StrictMode.setThreadPolicy(oldPolicy);
+                VenueRepository.getInstance(context).cancel(MainThreadIoTest.this);
+            }
+        });
+    }
+
+    @Test
+    public void loadsWithoutMainThreadIo() throws InterruptedException {
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final List<String> cached = new ArrayList<>();
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                VenueRepository.getInstance(context).load(LATITUDE, LONGITUDE, MainThreadIoTest.this,
+                        new VenueRepository.venueListener() {
+                            @Override
+                            public void venuesLoaded(VenueColumns restaurants) {
+                                cached.addAll(ids(restaurants));
+                                loaded.countDown();
+                            }
+
+                            @Override
+                            public void venuesChanged(VenueColumns changed) {
+                            }
+
+                            @Override
+                            public void venuesRefreshed() {
+                            }
+                        });
+            }
+        });
+        await(loaded);
+        assertTrue(cached.containsAll(ids(venues)));
+    }
+
+    @Test
+    public void searchesWithoutMainThreadIo() throws InterruptedException {
+        final CountDownLatch searched = new CountDownLatch(1);
+        final List<String> found = new ArrayList<>();
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                VenueRepository.getInstance(context).search("Tartine", LATITUDE, LONGITUDE,
+                        new VenueRepository.searchListener() {
+                            @Override
+                            public void searchResults(String query, VenueColumns results) {
+                                found.addAll(ids(results));
+                                searched.countDown();
+                            }
+                        });
+            }
+        });
+        await(searched);
+        assertTrue(found.contains("strictmode-2"));
+    }
+
+    @Test
+    public void savesAndLoadsTheSnapshotWithoutMainThreadIo() throws InterruptedException {
+        final CountDownLatch snapshotLoaded = new CountDownLatch(1);
+        final List<String> snapshot = new ArrayList<>();
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                VenueRepository repository = VenueRepository.getInstance(context);
+                repository.saveSnapshot(venues, LATITUDE, LONGITUDE);
+                //Queued behind the save on the repository's executor
+                repository.loadSnapshot(new VenueRepository.snapshotListener() {
+                    @Override
+                    public void snapshotLoaded(VenueColumns restaurants, Location location) {
+                        snapshot.addAll(ids(restaurants));
+                        snapshotLoaded.countDown();
+                    }
+                });
+            }
+        });
+        await(snapshotLoaded);
+        assertEquals(ids(venues), snapshot);
+    }
+
+    private static void onMainThread(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        assertTrue("timed out waiting for the main thread callback", latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private static List<String> ids(VenueColumns restaurants) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < restaurants.size(); ++i) {
+            ids.add(restaurants.getId(i));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,40 @@
+package com.abraheemomari.foursphere;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Dumps the metrics registry when sent the DUMP_METRICS broadcast, only included in debug builds.
+ * The JSON is returned as the broadcast's result data, which adb prints, and written to
+ * metrics.json in the app's external files directory so it can be pulled from field devices.
+ * Add the "reset" boolean extra to clear the metrics after dumping them.
+ */
+public class MetricsDumpReceiver extends BroadcastReceiver {
+
+    public static final String ACTION_DUMP_METRICS = "com.abraheemomari.foursphere.DUMP_METRICS";
+    public static final String EXTRA_RESET = "reset";
+
+    private static final String DUMP_FILE = "metrics.json";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String json = Metrics.toJson().toString();
+        Log.i("Metrics", json);
+        setResultData(json);
+
+        File directory = context.getExternalFilesDir(null);
+        if (directory == null) {
+            //External storage isn't mounted
+            directory = context.getFilesDir();
+        }
+        Metrics.dumpToFile(new File(directory, DUMP_FILE));
+
+        if (intent.getBooleanExtra(EXTRA_RESET, false)) {
+            Metrics.reset();
+        }
+    }
+}
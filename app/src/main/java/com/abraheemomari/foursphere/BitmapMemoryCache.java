@@ -0,0 +1,44 @@
+package com.abraheemomari.foursphere;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.android.volley.toolbox.ImageLoader;
+
+/**
+ * Memory tier of the image cache, bounded by the number of bytes the decoded bitmaps use
+ * rather than by how many of them there are
+ */
+public class BitmapMemoryCache extends LruCache<String, Bitmap> implements ImageLoader.ImageCache {
+
+    //Share of the app's heap class the decoded images may use
+    private static final int HEAP_FRACTION = 8;
+
+    public BitmapMemoryCache(Context context) {
+        super(maxBytes(context));
+    }
+
+    private static int maxBytes(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return activityManager.getMemoryClass() * 1024 * 1024 / HEAP_FRACTION;
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap bitmap) {
+        return bitmap.getByteCount();
+    }
+
+    @Override
+    public Bitmap getBitmap(String url) {
+        Bitmap bitmap = get(url);
+        Metrics.increment(bitmap != null ? Metrics.COUNTER_BITMAP_CACHE_HIT : Metrics.COUNTER_BITMAP_CACHE_MISS);
+        return bitmap;
+    }
+
+    @Override
+    public void putBitmap(String url, Bitmap bitmap) {
+        put(url, bitmap);
+    }
+}
@@ -5,8 +5,19 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Database extends SQLiteOpenHelper {
 
@@ -14,19 +25,265 @@ public class Database extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "Foursphere.db";
 
-    private static final int DATABASE_VERSION = 1;
-
-    private static final String VENUES_CREATE = "CREATE TABLE IF NOT EXISTS VENUES " +
+    static final String VENUES_CREATE = "CREATE TABLE IF NOT EXISTS VENUES " +
             "(venue_id   TEXT    PRIMARY KEY, " +
             " venue_name   TEXT    NOT NULL, " +
             " venue_category  TEXT    NOT NULL, " +
             " latitude     REAL    NOT NULL, " +
             " longitude    REAL    NOT NULL, " +
-            " photo_url    TEXT);";
+            " photo_url    TEXT, " +
+            " geohash      TEXT, " +
+            " last_seen    INTEGER NOT NULL DEFAULT 0, " +
+            " last_fetched INTEGER NOT NULL DEFAULT 0);";
+
+    //Lets nearby-venue queries range scan the geohash prefixes covering their bounding box
+    static final String VENUES_GEOHASH_INDEX = "CREATE INDEX IF NOT EXISTS VENUES_GEOHASH ON VENUES (geohash);";
+
+    //Lets eviction find the least recently seen rows without sorting the table
+    static final String VENUES_LAST_SEEN_INDEX = "CREATE INDEX IF NOT EXISTS VENUES_LAST_SEEN ON VENUES (last_seen);";
+
+    //Lets eviction find the venues Foursquare hasn't returned for too long without scanning the table
+    static final String VENUES_LAST_FETCHED_INDEX = "CREATE INDEX IF NOT EXISTS VENUES_LAST_FETCHED ON VENUES (last_fetched);";
+
+    //One row per location tile with the time its venues were last fetched from Foursquare
+    private static final String TILES_CREATE = "CREATE TABLE IF NOT EXISTS TILES " +
+            "(tile_id    TEXT    PRIMARY KEY, " +
+            " fetched_at INTEGER NOT NULL);";
+
+    //How often the user has looked for venues in each location tile, to learn which tiles to prefetch
+    private static final String TILE_VISITS_CREATE = "CREATE TABLE IF NOT EXISTS TILE_VISITS " +
+            "(tile_id    TEXT    PRIMARY KEY, " +
+            " latitude   REAL    NOT NULL, " +
+            " longitude  REAL    NOT NULL, " +
+            " visits     INTEGER NOT NULL, " +
+            " last_visit INTEGER NOT NULL);";
+
+    //Precision of the stored geohash, about 5 meters
+    static final int GEOHASH_PRECISION = 9;
+
+    /*Full-text index over venue names and categories, keyed by the venue's rowid.
+      The prefix indexes make the one and two letter prefix queries of the first keystrokes cheap.
+      Android's SQLite is too old for the unicode61 tokenizer everywhere we run, so matching folds ASCII case only.
+    */
+    static final String VENUES_FTS_CREATE = "CREATE VIRTUAL TABLE IF NOT EXISTS VENUES_FTS " +
+            "USING fts4(venue_name, venue_category, prefix=\"1,2\");";
+
+    //Keep VENUES_FTS in step with VENUES. INSERT OR REPLACE deletes the old row without firing delete triggers,
+    //so inserts first drop any index entry of the venue they replace.
+    static final String[] VENUES_FTS_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS VENUES_FTS_BEFORE_INSERT BEFORE INSERT ON VENUES BEGIN " +
+                    "DELETE FROM VENUES_FTS WHERE docid IN (SELECT rowid FROM VENUES WHERE venue_id = new.venue_id); END;",
+            "CREATE TRIGGER IF NOT EXISTS VENUES_FTS_AFTER_INSERT AFTER INSERT ON VENUES BEGIN " +
+                    "INSERT INTO VENUES_FTS (docid, venue_name, venue_category) " +
+                    "VALUES (new.rowid, new.venue_name, new.venue_category); END;",
+            "CREATE TRIGGER IF NOT EXISTS VENUES_FTS_AFTER_UPDATE AFTER UPDATE OF venue_name, venue_category ON VENUES BEGIN " +
+                    "UPDATE VENUES_FTS SET venue_name = new.venue_name, venue_category = new.venue_category " +
+                    "WHERE docid = old.rowid; END;",
+            "CREATE TRIGGER IF NOT EXISTS VENUES_FTS_AFTER_DELETE AFTER DELETE ON VENUES BEGIN " +
+                    "DELETE FROM VENUES_FTS WHERE docid = old.rowid; END;",
+    };
+
+    static final String VENUE_COLUMNS = "venue_id, venue_name, venue_category, latitude, longitude, photo_url";
+
+    static final String VENUE_UPSERT = "INSERT OR REPLACE INTO VENUES " +
+            "(" + VENUE_COLUMNS + ", geohash, last_seen, last_fetched) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?);";
+
+    /*matchinfo 'pcx' holds the phrase and column counts, then for each phrase and column
+      the hits in this row, the hits in every row and the rows with a hit.
+      Matches are ordered by their squared equirectangular distance from the user before the LIMIT, so the candidates
+      ranked in memory are the nearest matches rather than whichever come first in docid order.
+      Arguments: match, latitude, latitude, longitude, longitude, cos(latitude)^2, limit
+    */
+    static final String VENUE_SEARCH = "SELECT v.venue_id, v.venue_name, v.venue_category, v.latitude, v.longitude, v.photo_url, " +
+            "matchinfo(VENUES_FTS, 'pcx') FROM VENUES_FTS JOIN VENUES v ON v.rowid = VENUES_FTS.docid " +
+            "WHERE VENUES_FTS MATCH ? " +
+            "ORDER BY (v.latitude - ?) * (v.latitude - ?) + (v.longitude - ?) * (v.longitude - ?) * ? LIMIT ?;";
+
+    //Weight of a hit in each column of VENUES_FTS, a name match counts for more than a category match
+    private static final double[] SEARCH_COLUMN_WEIGHTS = {2.0, 1.0};
+
+    //Distance at which a venue's relevance is halved when ranking search results
+    private static final double SEARCH_DISTANCE_HALVING_MILES = 1.0;
+
+    //Nearest matches ranked in memory for each search, more than a screen of results.
+    //The distance discount makes a farther match unlikely to outrank all of them.
+    static final int SEARCH_CANDIDATE_LIMIT = 200;
+
+    static final String VENUE_TOUCH_FETCHED = "UPDATE VENUES SET last_seen = ?, last_fetched = ? WHERE venue_id = ?;";
+
+    static final String VENUE_TOUCH_SEEN = "UPDATE VENUES SET last_seen = ? WHERE venue_id = ?;";
+
+    //Returns VENUE_MISSING, VENUE_CHANGED or VENUE_UNCHANGED for a venue_id in a single compiled query
+    static final String VENUE_STATE_QUERY = "SELECT COALESCE((SELECT CASE WHEN " +
+            "venue_name = ? AND venue_category = ? AND latitude = ? AND longitude = ? AND photo_url IS ? " +
+            "THEN 2 ELSE 1 END FROM VENUES WHERE venue_id = ?), 0);";
+
+    static final long VENUE_MISSING = 0;
+    static final long VENUE_CHANGED = 1;
+    static final long VENUE_UNCHANGED = 2;
+
+    /**
+     * One step of the schema's history, applied by onUpgrade in order
+     */
+    interface migration {
+        public void migrate(SQLiteDatabase db);
+    }
+
+    //MIGRATIONS[i] upgrades the schema from version i + 1 to version i + 2, so adding one bumps the version
+    private static final migration[] MIGRATIONS = {
+            //Version 2 added the geohash column, fill it in for the rows we already have
+            new migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE VENUES ADD COLUMN geohash TEXT;");
+
+                    SQLiteStatement update = db.compileStatement("UPDATE VENUES SET geohash = ? WHERE venue_id = ?;");
+                    Cursor result = db.rawQuery("SELECT venue_id, latitude, longitude FROM VENUES;", null);
+                    try {
+                        while (result.moveToNext()) {
+                            update.bindString(1, GeoHash.encode(result.getDouble(1), result.getDouble(2), GEOHASH_PRECISION));
+                            update.bindString(2, result.getString(0));
+                            update.executeUpdateDelete();
+                        }
+                    } finally {
+                        result.close();
+                        update.close();
+                    }
+                    db.execSQL(VENUES_GEOHASH_INDEX);
+                }
+            },
+            //Version 3 added the tiles table
+            new migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL(TILES_CREATE);
+                }
+            },
+            //Version 4 added the timestamps used for eviction. Existing rows are of unknown age,
+            //so they start their lifetime now rather than being evicted on the first pass.
+            new migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE VENUES ADD COLUMN last_seen INTEGER NOT NULL DEFAULT 0;");
+                    db.execSQL("ALTER TABLE VENUES ADD COLUMN last_fetched INTEGER NOT NULL DEFAULT 0;");
+                    long now = System.currentTimeMillis();
+                    db.execSQL("UPDATE VENUES SET last_seen = " + now + ", last_fetched = " + now + ";");
+                    db.execSQL(VENUES_LAST_SEEN_INDEX);
+                }
+            },
+            //Version 5 added the full-text search index, built from the venues we already have
+            new migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL(VENUES_FTS_CREATE);
+                    for (String trigger : VENUES_FTS_TRIGGERS) {
+                        db.execSQL(trigger);
+                    }
+                    db.execSQL("INSERT INTO VENUES_FTS (docid, venue_name, venue_category) " +
+                            "SELECT rowid, venue_name, venue_category FROM VENUES;");
+                }
+            },
+            //Version 6 added tile visits for background prefetching
+            new migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL(TILE_VISITS_CREATE);
+                }
+            },
+            //Version 7 indexed last_fetched for age-based eviction
+            new migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL(VENUES_LAST_FETCHED_INDEX);
+                }
+            },
+    };
+
+    private static final int DATABASE_VERSION = MIGRATIONS.length + 1;
+
+    //Venues not returned by Foursquare for this long are deleted rather than served as current
+    public static final long DEFAULT_MAX_VENUE_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+
+    //Beyond this many venues the least recently seen are deleted
+    public static final int DEFAULT_MAX_VENUES = 5000;
+
+    //Rows deleted per transaction, so eviction never holds the database for long
+    private static final int EVICTION_BATCH_SIZE = 200;
+
+    public interface evictionListener {
+        /**
+         * @param evicted Number of venues deleted
+         */
+        public void venuesEvicted(int evicted);
+    }
+
+    /**
+     * A location tile the user has looked for venues in
+     */
+    public static class TileVisit {
+        public final String tileId;
+        //Where the user last queried from inside the tile
+        public final double latitude;
+        public final double longitude;
+        public final int visits;
+
+        public TileVisit(String tileId, double latitude, double longitude, int visits) {
+            this.tileId = tileId;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.visits = visits;
+        }
+    }
+
+    public interface upsertListener {
+        public void venuesUpserted(UpsertResult result);
+    }
+
+    /**
+     * Number of rows touched by a call to upsertVenues
+     */
+    public static class UpsertResult {
+        public final int inserted;
+        public final int updated;
+        public final int unchanged;
+
+        public UpsertResult(int inserted, int updated, int unchanged) {
+            this.inserted = inserted;
+            this.updated = updated;
+            this.unchanged = unchanged;
+        }
+
+        @Override
+        public String toString() {
+            return inserted + " inserted, " + updated + " updated, " + unchanged + " unchanged";
+        }
+    }
+
+    //Number of threads reading at once. WAL lets each of them read alongside the writer.
+    private static final int READER_THREADS = 2;
+
+    public interface reader<T> {
+        /**
+         * Called on a reader thread, may use any of the blocking read methods
+         */
+        public T read(Database database);
+    }
+
+    public interface readListener<T> {
+        public void onRead(T result);
+    }
+
+    //The only thread that writes, so writes are serialized and never contend for the database lock
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ExecutorService readers = Executors.newFixedThreadPool(READER_THREADS);
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
 
     public Database(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        //Readers see the last committed state instead of waiting for the writer's transaction to finish
+        setWriteAheadLoggingEnabled(true);
     }
 
     public static synchronized Database getInstance(Context context) {
@@ -41,105 +298,582 @@ public class Database extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase database) {
         database.execSQL(VENUES_CREATE);
+        database.execSQL(VENUES_GEOHASH_INDEX);
+        database.execSQL(VENUES_LAST_SEEN_INDEX);
+        database.execSQL(VENUES_LAST_FETCHED_INDEX);
+        database.execSQL(VENUES_FTS_CREATE);
+        for (String trigger : VENUES_FTS_TRIGGERS) {
+            database.execSQL(trigger);
+        }
+        database.execSQL(TILES_CREATE);
+        database.execSQL(TILE_VISITS_CREATE);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        //SQLiteOpenHelper already runs this inside a transaction, so a failed migration leaves the old version intact
+        for (int version = oldVersion; version < newVersion; ++version) {
+            MIGRATIONS[version - 1].migrate(db);
+        }
+    }
+
+    /**
+     * Runs the reader on the reader pool, alongside the writer and other readers
+     * @param listener Notified on the main thread with what the reader returned
+     */
+    public <T> void read(final reader<T> reader, final readListener<T> listener)
+    {
+        readers.execute(new Runnable() {
+            @Override
+            public void run() {
+                final T result = reader.read(Database.this);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onRead(result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Inserts or updates every venue in a single transaction on the database's background executor
+     * @param restaurants Venues to write to the venues table
+     * @param listener Notified on the main thread with the number of inserted, updated and unchanged rows, may be null
+     */
+    public void upsertVenues(VenueColumns restaurants, final upsertListener listener)
+    {
+        //Copy the venues so the caller is free to modify its list while we write
+        final VenueColumns venues = restaurants.copy();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final UpsertResult result = writeVenues(venues);
+
+                if (listener != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.venuesUpserted(result);
+                        }
+                    });
+                }
+            }
+        });
     }
 
     /**
-     * Checks if there are any entries in the database
-     * @return true if the database has data, false otherwise
+     * Writes the restaurants to the venues table using compiled statements inside one transaction,
+     * so the whole batch costs a single commit
+     * @return Number of inserted, updated and unchanged rows
      */
-    public boolean isInitialized()
+    UpsertResult writeVenues(VenueColumns restaurants)
     {
+        int inserted = 0;
+        int updated = 0;
+        int unchanged = 0;
+
+        long trace = Metrics.start(Metrics.STAGE_DB_WRITE_VENUES);
+        long now = System.currentTimeMillis();
         SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteStatement stateStatement = db.compileStatement(VENUE_STATE_QUERY);
+        SQLiteStatement upsertStatement = db.compileStatement(VENUE_UPSERT);
+        SQLiteStatement touchStatement = db.compileStatement(VENUE_TOUCH_FETCHED);
 
-        Cursor cursor = db.rawQuery("Select * from VENUES", null);
+        db.beginTransaction();
+        try {
+            VenueColumns.View restaurant = restaurants.view();
+            for (int i = 0; i < restaurants.size(); ++i)
+            {
+                restaurant.moveTo(i);
+                stateStatement.clearBindings();
+                bindString(stateStatement, 1, restaurant.getName());
+                bindString(stateStatement, 2, restaurant.getCategory());
+                stateStatement.bindDouble(3, restaurant.getLatitude());
+                stateStatement.bindDouble(4, restaurant.getLongitude());
+                bindString(stateStatement, 5, restaurant.getPhotoURL());
+                bindString(stateStatement, 6, restaurant.getId());
 
-        if(cursor != null)
-        {
-            if(cursor.getCount() <= 0){
-                return false;
+                long state = stateStatement.simpleQueryForLong();
+                if (state == VENUE_UNCHANGED) {
+                    //Still returned by Foursquare, so it starts a new lifetime without rewriting the row
+                    touchStatement.bindLong(1, now);
+                    touchStatement.bindLong(2, now);
+                    bindString(touchStatement, 3, restaurant.getId());
+                    touchStatement.executeUpdateDelete();
+                    ++unchanged;
+                    continue;
+                }
+
+                upsertStatement.clearBindings();
+                bindString(upsertStatement, 1, restaurant.getId());
+                bindString(upsertStatement, 2, restaurant.getName());
+                bindString(upsertStatement, 3, restaurant.getCategory());
+                upsertStatement.bindDouble(4, restaurant.getLatitude());
+                upsertStatement.bindDouble(5, restaurant.getLongitude());
+                bindString(upsertStatement, 6, restaurant.getPhotoURL());
+                upsertStatement.bindString(7, GeoHash.encode(restaurant.getLatitude(), restaurant.getLongitude(), GEOHASH_PRECISION));
+                upsertStatement.bindLong(8, now);
+                upsertStatement.bindLong(9, now);
+                upsertStatement.executeInsert();
+
+                if (state == VENUE_MISSING) {
+                    ++inserted;
+                } else {
+                    ++updated;
+                }
             }
-            else{
-                return true;
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            stateStatement.close();
+            upsertStatement.close();
+            touchStatement.close();
+            Metrics.end(Metrics.STAGE_DB_WRITE_VENUES, trace);
+        }
+
+        return new UpsertResult(inserted, updated, unchanged);
+    }
+
+    /**
+     * Blocks on disk, call it from a reader or another background thread.
+     * @return Time the tile's venues were last fetched in milliseconds since the epoch, or 0 if they never were
+     */
+    public long getTileFetchedAt(String tileId)
+    {
+        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteStatement statement = db.compileStatement("SELECT COALESCE((SELECT fetched_at FROM TILES WHERE tile_id = ?), 0);");
+        try {
+            statement.bindString(1, tileId);
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Records that the tile's venues were fetched. Runs on the write executor after any pending upserts.
+     */
+    public void markTileFetched(final String tileId, final long fetchedAt)
+    {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteStatement statement = getWritableDatabase().compileStatement(
+                        "INSERT OR REPLACE INTO TILES (tile_id, fetched_at) VALUES (?, ?);");
+                try {
+                    statement.bindString(1, tileId);
+                    statement.bindLong(2, fetchedAt);
+                    statement.executeInsert();
+                } finally {
+                    statement.close();
+                }
             }
+        });
+    }
+
+    /**
+     * Records that the restaurants were shown, so eviction keeps them over venues nobody has looked at.
+     * Runs on the write executor.
+     */
+    public void markVenuesSeen(VenueColumns restaurants)
+    {
+        if (restaurants.isEmpty()) {
+            return;
+        }
+        final List<String> ids = new ArrayList<>(restaurants.size());
+        for (int i = 0; i < restaurants.size(); ++i) {
+            ids.add(restaurants.getId(i));
         }
-        return false;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                SQLiteDatabase db = getWritableDatabase();
+                SQLiteStatement statement = db.compileStatement(VENUE_TOUCH_SEEN);
+                db.beginTransaction();
+                try {
+                    for (String id : ids) {
+                        statement.bindLong(1, now);
+                        bindString(statement, 2, id);
+                        statement.executeUpdateDelete();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    statement.close();
+                }
+            }
+        });
     }
 
     /**
-     * Adds a restaurant to the venu table of the database
+     * Deletes venues not fetched within maxAgeMs, then the least recently seen venues beyond maxVenues,
+     * along with tiles fetched or visited longer than maxAgeMs ago. Runs on the write executor after any pending upserts.
+     * @param listener Notified on the main thread with the number of venues deleted, may be null
      */
-    public void addVenue(String venueId, String venueName, String venueCategory, double latitude, double longitude,
-                         String photoUrl)
+    public void evictVenues(final long maxAgeMs, final int maxVenues, final evictionListener listener)
     {
-        String stmt = "INSERT INTO VENUES VALUES(?, ?, ?, ?, ?, ?);";
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int evicted = deleteStaleVenues(System.currentTimeMillis() - maxAgeMs, maxVenues);
+
+                if (listener != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.venuesEvicted(evicted);
+                        }
+                    });
+                }
+            }
+        });
+    }
 
+    /**
+     * Deletes in batches of EVICTION_BATCH_SIZE rows, each in its own transaction,
+     * so reads and upserts queued behind eviction wait for one short batch at most
+     * @return Number of venues deleted
+     */
+    int deleteStaleVenues(long fetchedBefore, int maxVenues)
+    {
         SQLiteDatabase db = this.getWritableDatabase();
-        Object[] args = new Object[] {venueId, venueName, venueCategory, latitude, longitude, photoUrl};
-        db.execSQL(stmt, args);
+        int evicted = 0;
+
+        SQLiteStatement expired = db.compileStatement("DELETE FROM VENUES WHERE venue_id IN " +
+                "(SELECT venue_id FROM VENUES WHERE last_fetched < ? LIMIT " + EVICTION_BATCH_SIZE + ");");
+        try {
+            expired.bindLong(1, fetchedBefore);
+            int deleted;
+            do {
+                deleted = expired.executeUpdateDelete();
+                evicted += deleted;
+            } while (deleted == EVICTION_BATCH_SIZE);
+        } finally {
+            expired.close();
+        }
 
+        SQLiteStatement count = db.compileStatement("SELECT COUNT(*) FROM VENUES;");
+        SQLiteStatement leastSeen = db.compileStatement("DELETE FROM VENUES WHERE venue_id IN " +
+                "(SELECT venue_id FROM VENUES ORDER BY last_seen LIMIT ?);");
+        try {
+            long excess = count.simpleQueryForLong() - maxVenues;
+            while (excess > 0) {
+                leastSeen.bindLong(1, Math.min(excess, EVICTION_BATCH_SIZE));
+                int deleted = leastSeen.executeUpdateDelete();
+                if (deleted == 0) {
+                    break;
+                }
+                evicted += deleted;
+                excess -= deleted;
+            }
+        } finally {
+            count.close();
+            leastSeen.close();
+        }
+
+        SQLiteStatement tiles = db.compileStatement("DELETE FROM TILES WHERE fetched_at < ?;");
+        SQLiteStatement visits = db.compileStatement("DELETE FROM TILE_VISITS WHERE last_visit < ?;");
+        try {
+            tiles.bindLong(1, fetchedBefore);
+            tiles.executeUpdateDelete();
+            //Tiles the user hasn't been to for as long aren't worth prefetching
+            visits.bindLong(1, fetchedBefore);
+            visits.executeUpdateDelete();
+        } finally {
+            tiles.close();
+            visits.close();
+        }
+        return evicted;
+    }
+
+    /**
+     * Counts a query for venues in the tile. Runs on the write executor.
+     */
+    public void recordTileVisit(final String tileId, final double latitude, final double longitude)
+    {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getWritableDatabase();
+                SQLiteStatement update = db.compileStatement("UPDATE TILE_VISITS SET visits = visits + 1, " +
+                        "latitude = ?, longitude = ?, last_visit = ? WHERE tile_id = ?;");
+                try {
+                    update.bindDouble(1, latitude);
+                    update.bindDouble(2, longitude);
+                    update.bindLong(3, System.currentTimeMillis());
+                    update.bindString(4, tileId);
+                    if (update.executeUpdateDelete() == 0) {
+                        SQLiteStatement insert = db.compileStatement("INSERT INTO TILE_VISITS " +
+                                "(tile_id, latitude, longitude, visits, last_visit) VALUES (?, ?, ?, 1, ?);");
+                        try {
+                            insert.bindString(1, tileId);
+                            insert.bindDouble(2, latitude);
+                            insert.bindDouble(3, longitude);
+                            insert.bindLong(4, System.currentTimeMillis());
+                            insert.executeInsert();
+                        } finally {
+                            insert.close();
+                        }
+                    }
+                } finally {
+                    update.close();
+                }
+            }
+        });
     }
 
     /**
-     * Checks if the restaurant is already in the database
-     * @return true if the restaurant already exists, false otherwise
+     * Blocks on disk, call it from a reader or another background thread.
+     * @param visitedSince Only tiles visited at or after this time in milliseconds since the epoch are returned
+     * @return Up to limit tiles, most visited first
      */
-    public boolean venueExists(String venueId){
+    public List<TileVisit> getFrequentTiles(long visitedSince, int limit)
+    {
+        List<TileVisit> tiles = new ArrayList<>();
         SQLiteDatabase db = this.getReadableDatabase();
-        String[] args = new String[]{venueId};
-        Cursor result =  db.rawQuery( "SELECT * FROM VENUES WHERE venue_id = ?;", args);
+        Cursor result = db.rawQuery("SELECT tile_id, latitude, longitude, visits FROM TILE_VISITS " +
+                "WHERE last_visit >= ? ORDER BY visits DESC, last_visit DESC LIMIT ?;",
+                new String[]{String.valueOf(visitedSince), String.valueOf(limit)});
+        try {
+            while (result.moveToNext())
+            {
+                tiles.add(new TileVisit(result.getString(0), result.getDouble(1), result.getDouble(2), result.getInt(3)));
+            }
+        } finally {
+            result.close();
+        }
+        return tiles;
+    }
 
-        result.moveToFirst();
-        result.getCount();
+    private static void bindString(SQLiteStatement statement, int index, String value)
+    {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
 
-        if (result.getCount() != 0)
-        {
-            return true;
+    /**
+     * Gets the cached restaurants within a radius of a point using the geohash index, so the cost
+     * depends on how many venues are nearby rather than how many are cached. Blocks on disk, call it from a reader.
+     * @param radiusMeters Maximum distance of a restaurant from the point
+     * @param limit Maximum number of restaurants to return
+     * @return The nearest restaurants inside the radius, nearest first
+     */
+    public VenueColumns getVenuesNear(double latitude, double longitude, double radiusMeters, int limit){
+        long trace = Metrics.start(Metrics.STAGE_DB_VENUES_NEAR);
+        try {
+            return queryVenuesNear(latitude, longitude, radiusMeters, limit);
+        } finally {
+            Metrics.end(Metrics.STAGE_DB_VENUES_NEAR, trace);
         }
-        else
-        {
-            return false;
+    }
+
+    private VenueColumns queryVenuesNear(double latitude, double longitude, double radiusMeters, int limit){
+        double[] box = GeoHash.boundingBox(latitude, longitude, radiusMeters);
+        List<String> prefixes = GeoHash.coveringPrefixes(box, GeoHash.precisionForRadius(latitude, radiusMeters));
+        String query = venuesNearQuery(prefixes.size());
+        String[] args = venuesNearArgs(box, prefixes);
+
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor result = db.rawQuery(query, args);
+
+        VenueColumns inRadius = new VenueColumns(result.getCount());
+        try {
+            while (result.moveToNext())
+            {
+                double venueLatitude = result.getDouble(3);
+                double venueLongitude = result.getDouble(4);
+                double meters = GeoHash.distanceMeters(latitude, longitude, venueLatitude, venueLongitude);
+
+                //The corners of the bounding box are outside the circle
+                if (meters > radiusMeters) {
+                    continue;
+                }
+
+                inRadius.add(result.getString(0), result.getString(1), venueLatitude, venueLongitude,
+                        result.getString(2), VenueColumns.OPEN_UNKNOWN, result.getString(5));
+            }
+        } finally {
+            result.close();
+        }
+
+        //Sort by distance (nearest first) and keep the closest ones
+        VenueRanker ranker = new VenueRanker();
+        ranker.reset(inRadius.size());
+        for (int i = 0; i < inRadius.size(); ++i) {
+            ranker.setVenue(i, inRadius.getLatitude(i), inRadius.getLongitude(i));
         }
+        ranker.rank(latitude, longitude, false);
+
+        int count = Math.min(limit, inRadius.size());
+        VenueColumns restaurants = new VenueColumns(count);
+        for (int rank = 0; rank < count; ++rank) {
+            int venue = ranker.venueAt(rank);
+            restaurants.setDistance(restaurants.add(inRadius, venue), (float) (ranker.distanceOf(venue) / 1609));
+        }
+        return restaurants;
     }
 
     /**
-     * Gets all the restaurants available in the database
-     * @return ArrayList of Restaurant objects for every restaurant in the database
+     * Searches the cached venues' names and categories, ranking matches by relevance discounted by distance.
+     * Blocks on disk, call it from a reader.
+     * @param text What the user typed, each word matching as a prefix
+     * @return Up to limit venues, best first, with their distance from the point in miles
      */
-    public ArrayList<Restaurant> getVenues(){
+    public VenueColumns searchVenues(String text, double latitude, double longitude, int limit){
+        String match = searchMatch(text);
+        if (match == null) {
+            return new VenueColumns();
+        }
+
+        VenueColumns candidates = new VenueColumns(SEARCH_CANDIDATE_LIMIT);
+        //Score of each candidate by its index
+        final double[] scores = new double[SEARCH_CANDIDATE_LIMIT];
         SQLiteDatabase db = this.getReadableDatabase();
-        Cursor result =  db.rawQuery( "SELECT * FROM VENUES;", null);
+        Cursor result = db.rawQuery(VENUE_SEARCH, searchArgs(match, latitude, longitude, SEARCH_CANDIDATE_LIMIT));
+        try {
+            while (result.moveToNext())
+            {
+                double venueLatitude = result.getDouble(3);
+                double venueLongitude = result.getDouble(4);
+                double miles = GeoHash.distanceMeters(latitude, longitude, venueLatitude, venueLongitude) / 1609;
 
-        result.moveToFirst();
-        ArrayList<Restaurant> restaurants = new ArrayList<>();
-        String venueName = "";
-        String venueCategory = "";
-        double latitude = 0;
-        double longitude = 0;
-        String photoUrl = "";
+                int index = candidates.add(result.getString(0), result.getString(1), venueLatitude, venueLongitude,
+                        result.getString(2), VenueColumns.OPEN_UNKNOWN, result.getString(5));
+                candidates.setDistance(index, (float) miles);
+                scores[index] = searchScore(result.getBlob(6), miles);
+            }
+        } finally {
+            result.close();
+        }
+
+        //Only SEARCH_CANDIDATE_LIMIT candidates are ever sorted
+        Integer[] order = new Integer[candidates.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(scores[b], scores[a]);
+            }
+        });
 
-        for (int i = 0; i < result.getCount(); ++i)
+        int count = Math.min(limit, order.length);
+        VenueColumns restaurants = new VenueColumns(count);
+        for (int i = 0; i < count; ++i) {
+            restaurants.add(candidates, order[i]);
+        }
+        return restaurants;
+    }
+
+    /**
+     * @return MATCH expression requiring every word of the text as a prefix, or null if the text has no words
+     */
+    static String searchMatch(String text)
+    {
+        StringBuilder match = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        //A trailing space flushes the last word
+        String padded = text + " ";
+        for (int i = 0; i < padded.length(); ++i)
         {
-            venueName = result.getString(result.getColumnIndex("venue_name"));
-            venueCategory = result.getString(result.getColumnIndex("venue_category"));
-            latitude = result.getDouble(result.getColumnIndex("latitude"));
-            longitude = result.getDouble(result.getColumnIndex("longitude"));
-            photoUrl = result.getString(result.getColumnIndex("photo_url"));
+            char c = padded.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(word).append('*');
+                word.setLength(0);
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * @return Arguments of VENUE_SEARCH for the match expression around the point
+     */
+    static String[] searchArgs(String match, double latitude, double longitude, int limit)
+    {
+        //Degrees of longitude shrink towards the poles
+        double longitudeScale = Math.cos(Math.toRadians(latitude));
+        String lat = String.valueOf(latitude);
+        String lng = String.valueOf(longitude);
+        return new String[]{match, lat, lat, lng, lng, String.valueOf(longitudeScale * longitudeScale),
+                String.valueOf(limit)};
+    }
 
-            restaurants.add(new Restaurant(venueName, latitude, longitude, venueCategory, "", photoUrl));
+    /**
+     * Scores a match like SQLite's FTS4 example ranking function, each hit counting more the rarer its word is
+     * across the index, then halves the score every SEARCH_DISTANCE_HALVING_MILES
+     * @param matchinfo Result of matchinfo(VENUES_FTS, 'pcx') for the row
+     */
+    static double searchScore(byte[] matchinfo, double miles)
+    {
+        //matchinfo is an array of unsigned 32 bit integers in the device's byte order
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
 
-            if (!result.isLast())
+        double relevance = 0;
+        for (int phrase = 0; phrase < phrases; ++phrase)
+        {
+            for (int column = 0; column < columns && column < SEARCH_COLUMN_WEIGHTS.length; ++column)
             {
-                result.moveToNext();
+                int base = 2 + (phrase * columns + column) * 3;
+                int hitsInRow = info.get(base);
+                int hitsInAllRows = info.get(base + 1);
+                if (hitsInRow > 0) {
+                    relevance += (double) hitsInRow / hitsInAllRows * SEARCH_COLUMN_WEIGHTS[column];
+                }
             }
         }
+        return relevance * Math.pow(0.5, miles / SEARCH_DISTANCE_HALVING_MILES);
+    }
 
-        if(result != null) {
-            result.close();
+    /**
+     * @param prefixCount Number of geohash prefixes covering the bounding box
+     * @return Query selecting the venues in any of the prefixes' ranges and inside the bounding box
+     */
+    static String venuesNearQuery(int prefixCount)
+    {
+        StringBuilder query = new StringBuilder("SELECT " + VENUE_COLUMNS + " FROM VENUES WHERE (");
+        for (int i = 0; i < prefixCount; ++i)
+        {
+            if (i > 0) {
+                query.append(" OR ");
+            }
+            query.append("(geohash >= ? AND geohash < ?)");
         }
-        return restaurants;
+        query.append(") AND latitude BETWEEN ? AND ? AND longitude BETWEEN ? AND ?;");
+        return query.toString();
+    }
+
+    /**
+     * @return Arguments of venuesNearQuery for the bounding box and its covering prefixes
+     */
+    static String[] venuesNearArgs(double[] box, List<String> prefixes)
+    {
+        String[] args = new String[prefixes.size() * 2 + 4];
+        int arg = 0;
+        for (String prefix : prefixes)
+        {
+            args[arg++] = prefix;
+            args[arg++] = prefix + GeoHash.PREFIX_END;
+        }
+        args[arg++] = String.valueOf(box[0]);
+        args[arg++] = String.valueOf(box[2]);
+        args[arg++] = String.valueOf(box[1]);
+        args[arg] = String.valueOf(box[3]);
+        return args;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,155 @@
+package com.abraheemomari.foursphere;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Merges the responses of several explore queries sent at once into one list of venues,
+ * deduplicated by id, as each response arrives. Queries that haven't answered by the timeout
+ * are dropped, so one slow query can't hold back the rest.
+ *
+ * Only merges, sending the queries is up to the caller, which reports each one with answered or failed.
+ * Must be used from the main thread, which is also where Volley delivers responses.
+ */
+public class ExploreFanOut {
+
+    public interface fanOutListener {
+        /**
+         * Called with each response that arrives in time, without the venues an earlier response already had
+         */
+        public void venuesMerged(VenueColumns added);
+
+        /**
+         * Called once every query has answered, failed or been dropped
+         * @param merged Venues of every response that arrived in time, in the order they arrived
+         * @param responseSizes Number of venues each query answered with, or -1 if it failed or was dropped
+         */
+        public void fanOutFinished(VenueColumns merged, int[] responseSizes);
+    }
+
+    public static final long DEFAULT_QUERY_TIMEOUT_MS = 5000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final fanOutListener listener;
+    private final boolean[] done;
+    private final int[] responseSizes;
+    private final VenueColumns merged = new VenueColumns();
+    //Ids of the merged venues
+    private final Set<String> mergedIds = new HashSet<>();
+    private int pending;
+
+    /**
+     * @param queries Number of queries sent
+     */
+    public ExploreFanOut(int queries, fanOutListener listener) {
+        this.listener = listener;
+        done = new boolean[queries];
+        responseSizes = new int[queries];
+        Arrays.fill(responseSizes, -1);
+        pending = queries;
+    }
+
+    /**
+     * Starts the clock on the queries still pending
+     */
+    public void start(long timeoutMillis) {
+        if (pending == 0) {
+            finish();
+            return;
+        }
+        handler.postDelayed(timeout, timeoutMillis);
+    }
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            if (pending > 0) {
+                finish();
+            }
+        }
+    };
+
+    /**
+     * Merges the response of a query, unless it was dropped
+     * @param query Index of the query, from 0 to the number sent
+     */
+    public void answered(int query, VenueColumns response) {
+        if (!complete(query)) {
+            return;
+        }
+        responseSizes[query] = response.size();
+
+        VenueColumns added = new VenueColumns(response.size());
+        for (int i = 0; i < response.size(); ++i) {
+            if (mergedIds.add(response.getId(i))) {
+                merged.add(response, i);
+                added.add(response, i);
+            }
+        }
+        if (!added.isEmpty()) {
+            listener.venuesMerged(added);
+        }
+
+        if (pending == 0) {
+            finish();
+        }
+    }
+
+    /**
+     * Gives up on a query, unless it was already dropped
+     */
+    public void failed(int query) {
+        if (complete(query) && pending == 0) {
+            finish();
+        }
+    }
+
+    /**
+     * @return true if the query was still pending
+     */
+    private boolean complete(int query) {
+        if (done[query]) {
+            return false;
+        }
+        done[query] = true;
+        --pending;
+        return true;
+    }
+
+    /**
+     * Stops merging without finishing, e.g. because the requests were cancelled
+     */
+    public void cancel() {
+        handler.removeCallbacks(timeout);
+        pending = 0;
+        for (int i = 0; i < done.length; ++i) {
+            done[i] = true;
+        }
+    }
+
+    /**
+     * @return true if any query answered in time, given the sizes passed to fanOutFinished
+     */
+    public static boolean anyAnswered(int[] responseSizes) {
+        for (int size : responseSizes) {
+            if (size >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void finish() {
+        int dropped = pending;
+        cancel();
+        if (dropped > 0) {
+            Metrics.add(Metrics.COUNTER_EXPLORE_QUERY_DROPPED, dropped);
+        }
+        //Cancelled above, so nothing is merged into the list after this
+        listener.fanOutFinished(merged, responseSizes.clone());
+    }
+}
@@ -0,0 +1,108 @@
+package com.abraheemomari.foursphere;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads further pages of venues as the user scrolls towards the end of the list.
+ * At most one page is requested at a time, and the next page is requested as soon as
+ * the last visible row comes within the prefetch distance of the end.
+ */
+public class ExplorePager extends RecyclerView.OnScrollListener {
+
+    //How long to wait before retrying a page that failed to load
+    private static final long RETRY_DELAY_MS = 5000;
+
+    private final Context context;
+    private final LinearLayoutManager layoutManager;
+    private final int prefetchDistance;
+    private final VenueRepository.pageListener listener;
+
+    private double latitude;
+    private double longitude;
+    private boolean hasLocation;
+    private int nextOffset;
+    private boolean loading;
+    //Queries that may still have further pages, each is dropped once it answers with a short page
+    private final List<ExploreQuery> remaining = new ArrayList<>();
+    private long failedAt;
+
+    /**
+     * @param prefetchDistance Number of rows from the end of the list at which the next page is requested
+     * @param listener Notified on the main thread with each page
+     */
+    public ExplorePager(Context context, LinearLayoutManager layoutManager, int prefetchDistance,
+                        VenueRepository.pageListener listener) {
+        this.context = context;
+        this.layoutManager = layoutManager;
+        this.prefetchDistance = prefetchDistance;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts paging from the given location. The first page is loaded by VenueRepository.load,
+     * so paging starts with the second one.
+     */
+    public void setLocation(double latitude, double longitude) {
+        cancel();
+        this.latitude = latitude;
+        this.longitude = longitude;
+        hasLocation = true;
+        nextOffset = VenueRepository.PAGE_SIZE;
+        remaining.clear();
+        remaining.addAll(VenueRepository.getInstance(context).getQueries());
+        failedAt = 0;
+    }
+
+    /**
+     * Cancels the page being loaded, if any
+     */
+    public void cancel() {
+        VenueRepository.getInstance(context).cancel(this);
+        loading = false;
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        if (!hasLocation || loading || remaining.isEmpty()) {
+            return;
+        }
+        if (failedAt != 0 && SystemClock.elapsedRealtime() - failedAt < RETRY_DELAY_MS) {
+            return;
+        }
+
+        int itemCount = layoutManager.getItemCount();
+        if (itemCount > 0 && layoutManager.findLastVisibleItemPosition() >= itemCount - 1 - prefetchDistance) {
+            loadNextPage();
+        }
+    }
+
+    private void loadNextPage() {
+        loading = true;
+        final int offset = nextOffset;
+
+        VenueRepository.getInstance(context).loadPage(latitude, longitude, offset, VenueRepository.PAGE_SIZE,
+                new ArrayList<>(remaining), this, new VenueRepository.pageListener() {
+                    @Override
+                    public void pageLoaded(VenueColumns page, List<ExploreQuery> exhausted) {
+                        loading = false;
+                        failedAt = 0;
+                        nextOffset = offset + VenueRepository.PAGE_SIZE;
+                        remaining.removeAll(exhausted);
+                        listener.pageLoaded(page, exhausted);
+                    }
+
+                    @Override
+                    public void pageFailed() {
+                        loading = false;
+                        failedAt = SystemClock.elapsedRealtime();
+                        listener.pageFailed();
+                    }
+                });
+    }
+}
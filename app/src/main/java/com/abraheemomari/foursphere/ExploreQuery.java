@@ -0,0 +1,44 @@
+package com.abraheemomari.foursphere;
+
+import android.net.Uri;
+
+/**
+ * One explore query sent to Foursquare, either free text such as "dessert"
+ * or one of its sections such as "coffee" or "drinks".
+ */
+public class ExploreQuery {
+
+    private final String parameter;
+    private final String value;
+
+    private ExploreQuery(String parameter, String value) {
+        this.parameter = parameter;
+        this.value = value;
+    }
+
+    /**
+     * @return A query for venues matching the text
+     */
+    public static ExploreQuery query(String text) {
+        return new ExploreQuery("query", text);
+    }
+
+    /**
+     * @return A query for the venues of one of Foursquare's sections, e.g. food, drinks, coffee or shops
+     */
+    public static ExploreQuery section(String section) {
+        return new ExploreQuery("section", section);
+    }
+
+    /**
+     * @return The query as a URL parameter to append to an explore URL
+     */
+    String toParameter() {
+        return "&" + parameter + "=" + Uri.encode(value);
+    }
+
+    @Override
+    public String toString() {
+        return parameter + ":" + value;
+    }
+}
@@ -0,0 +1,402 @@
+package com.abraheemomari.foursphere;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+
+/**
+ * Volley request for Foursquare's "explore" end-point.
+ * The response body is parsed on Volley's network thread with a streaming JsonReader,
+ * appending only the fields the list shows to VenueColumns and skipping everything else.
+ */
+public class ExploreRequest extends Request<VenueColumns> {
+
+    //Size of the photo Foursquare renders for us, large enough for the list's thumbnails on any density
+    private static final String PHOTO_SIZE = "300x300";
+
+    private final Response.Listener<VenueColumns> listener;
+    private ResponseJournal journal;
+    private String journalKey;
+
+    public ExploreRequest(String url, Response.Listener<VenueColumns> listener, Response.ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        this.listener = listener;
+    }
+
+    /**
+     * Keeps the raw body of a successful response in the journal under the key
+     */
+    public void setJournal(ResponseJournal journal, String key) {
+        this.journal = journal;
+        journalKey = key;
+    }
+
+    @Override
+    protected Response<VenueColumns> parseNetworkResponse(NetworkResponse response) {
+        JsonReader reader = null;
+        String charset = parseCharset(response.headers);
+        try {
+            reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(response.data), charset));
+            VenueColumns venues;
+            long trace = Metrics.start(Metrics.STAGE_PARSE_EXPLORE);
+            try {
+                venues = parseExplore(reader);
+            } finally {
+                Metrics.end(Metrics.STAGE_PARSE_EXPLORE, trace);
+            }
+            //Still on the network thread, so the journal's disk write stays off the main thread
+            if (journal != null) {
+                if (response.notModified) {
+                    journal.touch(journalKey);
+                } else {
+                    journal.put(journalKey, response.data, charset);
+                }
+            }
+            return Response.success(venues, parseRevalidatableCacheHeaders(response));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        } catch (IllegalStateException e) {
+            //Thrown by JsonReader when the payload doesn't have the shape we expect
+            return Response.error(new ParseError(e));
+        } catch (NumberFormatException e) {
+            return Response.error(new ParseError(e));
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Foursquare marks explore responses no-cache, for which Volley keeps no cache entry at all.
+     * Keeping an already expired entry with the response's validators instead means the next request
+     * is sent with If-None-Match and If-Modified-Since, and an unchanged response comes back as an empty 304.
+     * @return Cache entry for the response, or null if it can neither be cached nor revalidated
+     */
+    static Cache.Entry parseRevalidatableCacheHeaders(NetworkResponse response) {
+        String etag = header(response.headers, "ETag");
+        String lastModified = header(response.headers, "Last-Modified");
+
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+        if (entry == null) {
+            if (etag == null && lastModified == null) {
+                return null;
+            }
+            entry = new Cache.Entry();
+            entry.data = response.data;
+            entry.ttl = 0;
+            entry.softTtl = 0;
+            entry.responseHeaders = response.headers;
+        }
+
+        //Volley only looks validators up by their exact spelling
+        if (entry.etag == null) {
+            entry.etag = etag;
+        }
+        //Volley sends the entry's server date as If-Modified-Since, so prefer the actual modification date
+        if (lastModified != null) {
+            entry.serverDate = HttpHeaderParser.parseDateAsEpoch(lastModified);
+        }
+        return entry;
+    }
+
+    /**
+     * A 304 carries the cached body but not always its Content-Type, and JSON defaults to UTF-8
+     * rather than the ISO-8859-1 Volley falls back to
+     */
+    private static String parseCharset(Map<String, String> headers) {
+        String contentType = header(headers, "Content-Type");
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                String[] pair = parameter.trim().split("=");
+                if (pair.length == 2 && pair[0].equalsIgnoreCase("charset")) {
+                    return pair[1];
+                }
+            }
+        }
+        return "UTF-8";
+    }
+
+    /**
+     * Looks up a header ignoring case, since servers and HTTP stacks differ in how they spell them
+     */
+    private static String header(Map<String, String> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void deliverResponse(VenueColumns venues) {
+        listener.onResponse(venues);
+    }
+
+    /**
+     * Parses the whole explore response
+     * @param reader Reader positioned at the start of the response
+     * @return Every venue in the first group of the response
+     * @throws IOException If Foursquare didn't return code 200 or the JSON is malformed
+     */
+    static VenueColumns parseExplore(JsonReader reader) throws IOException {
+        VenueColumns venues = new VenueColumns();
+        int code = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("meta")) {
+                code = parseMetaCode(reader);
+            } else if (name.equals("response")) {
+                parseResponse(reader, venues);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        //Check if request was successful
+        if (code != 200) {
+            throw new IOException("Foursquare not returning code:200 in JSON Response");
+        }
+        return venues;
+    }
+
+    private static int parseMetaCode(JsonReader reader) throws IOException {
+        int code = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("code")) {
+                code = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return code;
+    }
+
+    private static void parseResponse(JsonReader reader, VenueColumns venues) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("groups")) {
+                reader.beginArray();
+                //Only the first group holds the recommended venues, the rest are skipped
+                if (reader.hasNext()) {
+                    parseGroup(reader, venues);
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void parseGroup(JsonReader reader, VenueColumns venues) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            //The "items" array represents an array of venues
+            if (reader.nextName().equals("items")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    parseItem(reader, venues);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void parseItem(JsonReader reader, VenueColumns venues) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("venue")) {
+                parseVenue(reader, venues);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Appends the venue to the columns
+     */
+    private static void parseVenue(JsonReader reader, VenueColumns venues) throws IOException {
+        String venueId = "";
+        String venueName = "";
+        String venueCategory = "";
+        double latitude = 0;
+        double longitude = 0;
+        String photoURL = "";
+        String isOpen = "";
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("id")) {
+                venueId = reader.nextString();
+            } else if (name.equals("name")) {
+                venueName = reader.nextString();
+            } else if (name.equals("location")) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if (field.equals("lat")) {
+                        latitude = reader.nextDouble();
+                    } else if (field.equals("lng")) {
+                        longitude = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("categories")) {
+                venueCategory = parsePrimaryCategory(reader);
+            } else if (name.equals("photos")) {
+                photoURL = parseFirstPhoto(reader);
+            } else if (name.equals("hours") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                //Hours aren't gauranteed to be available
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("isOpen")) {
+                        isOpen = nextValueAsString(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        venues.add(venueId, venueName, latitude, longitude, venueCategory, VenueColumns.openStateOf(isOpen), photoURL);
+    }
+
+    /**
+     * @return Short name of the first category in the array, which is the primary category
+     */
+    private static String parsePrimaryCategory(JsonReader reader) throws IOException {
+        String shortName = "";
+        reader.beginArray();
+        if (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("shortName")) {
+                    shortName = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+        return shortName;
+    }
+
+    /**
+     * @return URL of the first photo available for the venue, or an empty string if it has none
+     */
+    static String parseFirstPhoto(JsonReader reader) throws IOException {
+        String photoURL = "";
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("groups")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (reader.nextName().equals("items") && photoURL.isEmpty()) {
+                            reader.beginArray();
+                            if (reader.hasNext()) {
+                                photoURL = parsePhoto(reader);
+                            }
+                            while (reader.hasNext()) {
+                                reader.skipValue();
+                            }
+                            reader.endArray();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return photoURL;
+    }
+
+    /**
+     * Converts Foursquare's photo object into a usable URL for a thumbnail sized photo
+     * rather than the full size original
+     * @return URL of photo
+     */
+    private static String parsePhoto(JsonReader reader) throws IOException {
+        String prefix = "";
+        String suffix = "";
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("prefix")) {
+                prefix = reader.nextString();
+            } else if (name.equals("suffix")) {
+                suffix = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return prefix + PHOTO_SIZE + suffix;
+    }
+
+    /**
+     * Reads a string, number or boolean value as a string
+     */
+    private static String nextValueAsString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(reader.nextBoolean());
+        } else if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return "";
+        }
+        return reader.nextString();
+    }
+}
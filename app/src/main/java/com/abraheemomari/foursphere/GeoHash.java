@@ -0,0 +1,138 @@
+package com.abraheemomari.foursphere;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes coordinates as geohash strings so that nearby venues share a common prefix,
+ * which lets the venue table answer bounding box queries with an index range scan
+ */
+public final class GeoHash {
+
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    //Sorts after every character in BASE32, so prefix + PREFIX_END is an exclusive upper bound
+    public static final String PREFIX_END = "{";
+
+    public static final int MAX_PRECISION = 12;
+
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    private GeoHash() {
+    }
+
+    /**
+     * @param precision Number of characters in the hash, between 1 and MAX_PRECISION
+     * @return Geohash of the coordinates
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        double minLat = -90, maxLat = 90;
+        double minLng = -180, maxLng = 180;
+
+        StringBuilder hash = new StringBuilder(precision);
+        boolean evenBit = true;
+        int bit = 0;
+        int ch = 0;
+
+        while (hash.length() < precision) {
+            if (evenBit) {
+                double mid = (minLng + maxLng) / 2;
+                if (longitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLng = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLng = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+
+            if (++bit == 5) {
+                hash.append(BASE32.charAt(ch));
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Finds the longest precision whose cells are at least as large as the bounding box
+     * of the circle, so the box never spans more than two cells in either direction
+     */
+    public static int precisionForRadius(double latitude, double radiusMeters) {
+        double diameter = radiusMeters * 2;
+        double metersPerLngDegree = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+
+        for (int precision = MAX_PRECISION; precision > 1; --precision) {
+            int bits = precision * 5;
+            double cellLngDegrees = 360 / Math.pow(2, (bits + 1) / 2);
+            double cellLatDegrees = 180 / Math.pow(2, bits / 2);
+
+            if (cellLatDegrees * METERS_PER_DEGREE >= diameter && cellLngDegrees * metersPerLngDegree >= diameter) {
+                return precision;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @return The box around the circle as {minLatitude, minLongitude, maxLatitude, maxLongitude}
+     */
+    public static double[] boundingBox(double latitude, double longitude, double radiusMeters) {
+        double latDelta = radiusMeters / METERS_PER_DEGREE;
+        double cosLat = Math.cos(Math.toRadians(latitude));
+        //Near the poles the box covers every longitude
+        double lngDelta = cosLat > 1e-6 ? radiusMeters / (METERS_PER_DEGREE * cosLat) : 180;
+
+        return new double[] {
+                Math.max(-90, latitude - latDelta),
+                Math.max(-180, longitude - lngDelta),
+                Math.min(90, latitude + latDelta),
+                Math.min(180, longitude + lngDelta)
+        };
+    }
+
+    /**
+     * Gets the cells that cover a bounding box. When the cells are at least as large as the box
+     * (see precisionForRadius) every covering cell contains one of the box's corners.
+     * @param box Bounding box as returned by boundingBox
+     * @return Distinct geohash prefixes covering the box
+     */
+    public static List<String> coveringPrefixes(double[] box, int precision) {
+        List<String> prefixes = new ArrayList<>(4);
+        addPrefix(prefixes, encode(box[0], box[1], precision));
+        addPrefix(prefixes, encode(box[0], box[3], precision));
+        addPrefix(prefixes, encode(box[2], box[1], precision));
+        addPrefix(prefixes, encode(box[2], box[3], precision));
+        return prefixes;
+    }
+
+    private static void addPrefix(List<String> prefixes, String prefix) {
+        if (!prefixes.contains(prefix)) {
+            prefixes.add(prefix);
+        }
+    }
+
+    /**
+     * @return Great-circle distance between two points in meters
+     */
+    public static double distanceMeters(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,28 @@
+package com.abraheemomari.foursphere;
+
+import com.android.volley.Cache;
+import com.android.volley.toolbox.DiskBasedCache;
+
+import java.io.File;
+
+/**
+ * Disk tier of the image cache, holding the encoded photos.
+ * Foursquare never changes the photo behind a URL, so entries are kept until they are
+ * evicted for space instead of expiring with the CDN's cache headers.
+ */
+public class ImageDiskCache extends DiskBasedCache {
+
+    private static final long ENTRY_TTL_MS = 30L * 24 * 60 * 60 * 1000;
+
+    public ImageDiskCache(File rootDirectory, int maxCacheSizeInBytes) {
+        super(rootDirectory, maxCacheSizeInBytes);
+    }
+
+    @Override
+    public synchronized void put(String key, Cache.Entry entry) {
+        long expires = System.currentTimeMillis() + ENTRY_TTL_MS;
+        entry.ttl = Math.max(entry.ttl, expires);
+        entry.softTtl = Math.max(entry.softTtl, expires);
+        super.put(key, entry);
+    }
+}
@@ -0,0 +1,204 @@
+package com.abraheemomari.foursphere;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Acquires the user's location without blocking.
+ * Starts from the best cached fix across all providers, then delivers a coarse network fix
+ * as soon as one arrives and refines it with GPS fixes as they come in.
+ * If no usable fix arrives before the timeout the listener is told so it can fall back to cached data.
+ */
+public class LocationPipeline implements LocationListener {
+
+    public interface locationListener {
+        /**
+         * Called on the main thread with each fix that is better than the previous one
+         */
+        public void locationUpdated(Location location);
+
+        /**
+         * Called on the main thread if no usable fix arrived in time
+         * @param staleLocation The best cached fix even though it is too old or inaccurate, or null if there is none
+         */
+        public void locationTimedOut(Location staleLocation);
+    }
+
+    //A cached fix older than this isn't trusted to start querying with
+    private static final long MAX_CACHED_AGE_MS = 10 * 60 * 1000;
+
+    //Fixes less accurate than this are never delivered
+    private static final float MAX_ACCURACY_METERS = 2000;
+
+    //A newer fix may be this much less accurate than the current one and still replace it
+    private static final float ACCURACY_TOLERANCE_METERS = 200;
+
+    //A fix this much newer than the current one always replaces it
+    private static final long SIGNIFICANTLY_NEWER_MS = 2 * 60 * 1000;
+
+    private static final long TIMEOUT_MS = 10000;
+
+    private static final long UPDATE_INTERVAL_MS = 15000;
+
+    private final LocationManager locationManager;
+    private final locationListener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private Location currentLocation;
+    private Location staleLocation;
+    private boolean running;
+
+    public LocationPipeline(LocationManager locationManager, locationListener listener) {
+        this.locationManager = locationManager;
+        this.listener = listener;
+    }
+
+    /**
+     * Delivers the best cached fix if it is recent enough and starts listening to the network and GPS providers
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+
+        Location cached = bestCachedLocation();
+        if (cached != null) {
+            if (isUsable(cached) && System.currentTimeMillis() - cached.getTime() <= MAX_CACHED_AGE_MS) {
+                offer(cached);
+            } else {
+                staleLocation = cached;
+            }
+        }
+
+        requestUpdates(LocationManager.NETWORK_PROVIDER);
+        requestUpdates(LocationManager.GPS_PROVIDER);
+
+        if (currentLocation == null) {
+            handler.postDelayed(timeout, TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Stops listening for location updates
+     */
+    public void stop() {
+        running = false;
+        handler.removeCallbacks(timeout);
+        try {
+            locationManager.removeUpdates(this);
+        } catch (SecurityException e) {
+            Log.e("Error", "Location permission was revoked", e);
+        }
+    }
+
+    /**
+     * @return The best fix delivered so far, or null if there isn't one yet
+     */
+    public Location getLocation() {
+        return currentLocation;
+    }
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            if (currentLocation == null) {
+                listener.locationTimedOut(staleLocation);
+            }
+        }
+    };
+
+    private Location bestCachedLocation() {
+        Location best = null;
+        try {
+            List<String> providers = locationManager.getProviders(true);
+            for (String provider : providers) {
+                Location location = locationManager.getLastKnownLocation(provider);
+                if (location != null && (best == null || isBetter(location, best))) {
+                    best = location;
+                }
+            }
+        } catch (SecurityException e) {
+            Log.e("Error", "Missing location permission", e);
+        }
+        return best;
+    }
+
+    private void requestUpdates(String provider) {
+        try {
+            if (locationManager.isProviderEnabled(provider)) {
+                locationManager.requestLocationUpdates(provider, UPDATE_INTERVAL_MS, 0, this, Looper.getMainLooper());
+            }
+        } catch (SecurityException e) {
+            Log.e("Error", "Missing location permission", e);
+        } catch (IllegalArgumentException e) {
+            //The device doesn't have this provider
+            Log.e("Error", "No " + provider + " location provider");
+        }
+    }
+
+    private void offer(Location location) {
+        if (!isUsable(location) || (currentLocation != null && !isBetter(location, currentLocation))) {
+            return;
+        }
+        currentLocation = location;
+        handler.removeCallbacks(timeout);
+        listener.locationUpdated(location);
+    }
+
+    private static boolean isUsable(Location location) {
+        return !location.hasAccuracy() || location.getAccuracy() <= MAX_ACCURACY_METERS;
+    }
+
+    /**
+     * Decides whether a fix should replace the current one, based on how much newer and how accurate it is
+     */
+    private static boolean isBetter(Location location, Location current) {
+        long timeDelta = location.getTime() - current.getTime();
+        if (timeDelta > SIGNIFICANTLY_NEWER_MS) {
+            return true;
+        } else if (timeDelta < -SIGNIFICANTLY_NEWER_MS) {
+            return false;
+        }
+
+        float accuracyDelta = accuracyOf(location) - accuracyOf(current);
+        if (accuracyDelta < 0) {
+            return true;
+        }
+        return timeDelta > 0 && accuracyDelta <= ACCURACY_TOLERANCE_METERS;
+    }
+
+    /**
+     * @return The fix's accuracy in meters, or the worst possible accuracy if it has none
+     */
+    private static float accuracyOf(Location location) {
+        return location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE;
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        offer(location);
+    }
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {
+
+    }
+
+    @Override
+    public void onProviderEnabled(String provider) {
+
+    }
+
+    @Override
+    public void onProviderDisabled(String provider) {
+
+    }
+}
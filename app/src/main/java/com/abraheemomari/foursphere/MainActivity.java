@@ -5,13 +5,13 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.location.Criteria;
 import android.location.Location;
-import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.StrictMode;
 import android.provider.Settings;
 import android.support.v4.app.ActivityCompat;
+import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v7.app.AppCompatActivity;
@@ -26,20 +26,45 @@ import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.MarkerOptions;
 
-public class MainActivity extends AppCompatActivity implements OnMapReadyCallback, MainFragment.mainFragListener, LocationListener {
+public class MainActivity extends AppCompatActivity implements OnMapReadyCallback, MainFragment.mainFragListener, LocationPipeline.locationListener {
+
+    private static final String MAIN_FRAGMENT_TAG = "main";
 
     MapUpdate mapUpdate;
     MainFragment mainFragment;
     SupportMapFragment mapFragment;
     LocationManager locationManager;
+    LocationPipeline locationPipeline;
     Location lastKnownLocation;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        //Stage timings and counters are only collected in debug builds, see MetricsDumpReceiver
+        Metrics.setEnabled(BuildConfig.DEBUG);
+        if (BuildConfig.DEBUG) {
+            //Logs any disk or network I/O left on the main thread, and any Cursor or statement that is never closed
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork()
+                    .penaltyLog()
+                    .build());
+            StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                    .detectLeakedSqlLiteObjects()
+                    .detectLeakedClosableObjects()
+                    .penaltyLog()
+                    .build());
+        }
+        //Coffee, bars and dessert are listed with the restaurants, each query is sent at once and merged as it answers
+        VenueRepository.getInstance(this).setQueries(ExploreQuery.query("food"), ExploreQuery.section("coffee"),
+                ExploreQuery.section("drinks"), ExploreQuery.query("dessert"));
         setContentView(R.layout.activity_main);
+        //Keeps the venues of the places visited most warm in the background, only on API 21 and up
+        TilePrefetchService.schedule(this);
 
-        //We want to start listening for locations as soon as the app starts so that we hopefully get an update before we need to use it
+        //We want to start listening for locations as soon as the app starts so that we hopefully get an update before we need to use it.
+        //The list shows up as soon as the first fix is delivered to the fragment, nothing here waits for it.
         updateLocation();
 
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
@@ -47,18 +72,31 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
 
         if (savedInstanceState != null)
         {
+            //The fragment manager already restored the fragments, pick them up so location fixes still reach the list
+            FragmentManager fm = getSupportFragmentManager();
+            Fragment restored = fm.findFragmentById(R.id.fragment_container);
+            if (restored instanceof SupportMapFragment) {
+                mapFragment = (SupportMapFragment) restored;
+                //The map is shown on top of the list
+                restored = fm.findFragmentByTag(MAIN_FRAGMENT_TAG);
+            }
+            if (restored instanceof MainFragment) {
+                mainFragment = (MainFragment) restored;
+                mainFragment.setLocation(locationPipeline.getLocation());
+            }
             return;
         }
 
         mainFragment = new MainFragment();
-        mainFragment.setLocation(lastKnownLocation);
+        //May still be null, in which case the fragment waits for the first fix
+        mainFragment.setLocation(locationPipeline.getLocation());
 
         mapFragment = SupportMapFragment.newInstance();
 
         //Add main fragment which is a scrollable RecyclerView listing nearby restaurants
         FragmentManager fm = getSupportFragmentManager();
         FragmentTransaction ft = fm.beginTransaction();
-        ft.replace(R.id.fragment_container, mainFragment);
+        ft.replace(R.id.fragment_container, mainFragment, MAIN_FRAGMENT_TAG);
         ft.addToBackStack(null);
         ft.commit();
         fm.executePendingTransactions();
@@ -84,17 +122,27 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
     public void onMapReady(final GoogleMap map) {
 
         //Create markers showing the user's location and the selected restaurant from the mapUpdate object
-        MarkerOptions userMarker = new MarkerOptions()
-                .position(mapUpdate.getUserLatLng())
-                .title("You");
-
         MarkerOptions restaurantMarker = new MarkerOptions()
                 .position(mapUpdate.getRestaurantLatLng())
                 .title(mapUpdate.getRestaurantName());
+        map.addMarker(restaurantMarker).showInfoWindow();
+
+        //Without any location yet there is only the restaurant to show
+        if (mapUpdate.getUserLatLng() == null) {
+            final CameraUpdate cameraUpdate = CameraUpdateFactory.newLatLngZoom(restaurantMarker.getPosition(), 15);
+            map.setOnMapLoadedCallback(new GoogleMap.OnMapLoadedCallback() {
+                @Override
+                public void onMapLoaded() {
+                    map.moveCamera(cameraUpdate);
+                }
+            });
+            return;
+        }
 
-        //Add the markers to the map
+        MarkerOptions userMarker = new MarkerOptions()
+                .position(mapUpdate.getUserLatLng())
+                .title("You");
         map.addMarker(userMarker);
-        map.addMarker(restaurantMarker).showInfoWindow();
 
         //Fit the camera of the MapView to our markers
         LatLngBounds.Builder builder = new LatLngBounds.Builder();
@@ -112,7 +160,7 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
     }
 
     /**
-     * Enable GPS if it isn't already, check for location permissions, get last known location, and start listening for new location updates
+     * Enable GPS if it isn't already, check for location permissions, and start the location pipeline
      */
     public void updateLocation()
     {
@@ -127,9 +175,6 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
             this.startActivity(intent);
         }
 
-        Criteria criteria = new Criteria();
-        String provider = locationManager.getBestProvider(criteria, false);
-
         //Check if app has permissions for location services and request them if not
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED && ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
 
@@ -138,16 +183,32 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
                     1);
         }
 
-        /*Get the device's last known location and start listening for an updated one.
-          If the device has just turned on then getLastKnownLocation may return null,
-          so we start listening for a location and loop until we get it. This is not
-          great practice because it is looping on the main UI thread, but this app is
-          supposed to be a simple demo, this is a niche case, and it shouldn't take
-          long in most cases to get a location, so it it's fine.
+        /*Start from the best cached fix and keep refining it with network and GPS fixes as they arrive.
+          Fixes are delivered to locationUpdated, and if none arrives in time locationTimedOut
+          falls back to the venues cached for the last place we queried.
         */
-        lastKnownLocation = locationManager.getLastKnownLocation(provider);
-        locationManager.requestLocationUpdates(provider, 15000, 0, this);
-        while (lastKnownLocation == null) {
+        locationPipeline = new LocationPipeline(locationManager, this);
+        locationPipeline.start();
+    }
+
+    @Override
+    public void locationUpdated(Location location) {
+        lastKnownLocation = location;
+        if (mainFragment != null) {
+            mainFragment.onLocationUpdated(location, false);
+        }
+    }
+
+    @Override
+    public void locationTimedOut(Location staleLocation) {
+        //Use whatever location we have so the cached venue list can be shown
+        Location fallback = staleLocation != null ? staleLocation : VenueRepository.getInstance(this).getLastQueryLocation();
+        if (fallback == null) {
+            return;
+        }
+        lastKnownLocation = fallback;
+        if (mainFragment != null) {
+            mainFragment.onLocationUpdated(fallback, true);
         }
     }
 
@@ -159,7 +220,9 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
     @Override
     public void restaurantSelected(Restaurant restaurant) {
         //Get locations for the user and restaurant markers and then pass them to a new mapUpdate object
-        LatLng userLatLng = new LatLng(lastKnownLocation.getLatitude(), lastKnownLocation.getLongitude());
+        //Rows drawn from the snapshot on a cold start can be tapped before the first fix
+        Location userLocation = lastKnownLocation != null ? lastKnownLocation : VenueRepository.getInstance(this).getLastQueryLocation();
+        LatLng userLatLng = userLocation != null ? new LatLng(userLocation.getLatitude(), userLocation.getLongitude()) : null;
         LatLng restaurantLatLng = new LatLng(restaurant.getLatitude(), restaurant.getLongitude());
         mapUpdate = new MapUpdate(restaurantLatLng, userLatLng, restaurant.getName());
 
@@ -180,38 +243,27 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
     }
 
     @Override
-    public void onPause()
+    protected void onResume()
     {
-        super.onPause();
-        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED && ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-
-            ActivityCompat.requestPermissions((Activity) this,
-                    new String[]{Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_COARSE_LOCATION},
-                    1);
-        }
-        //Stop listening for updates when we leave the app
-        locationManager.removeUpdates(this);
+        super.onResume();
+        //Resume listening for updates when we come back to the app
+        locationPipeline.start();
     }
 
     @Override
-    public void onLocationChanged(Location location) {
-        //We want to update our last known location to the new location
-        lastKnownLocation = location;
-    }
-
-    @Override
-    public void onStatusChanged(String provider, int status, Bundle extras) {
-
-    }
-
-    @Override
-    public void onProviderEnabled(String provider) {
-
+    public void onPause()
+    {
+        super.onPause();
+        //Stop listening for updates when we leave the app
+        locationPipeline.stop();
     }
 
     @Override
-    public void onProviderDisabled(String provider) {
-
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        //Now that we may have permission, start listening again
+        locationPipeline.stop();
+        locationPipeline.start();
     }
 }
 
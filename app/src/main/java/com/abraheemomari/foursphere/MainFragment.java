@@ -1,53 +1,68 @@
 package com.abraheemomari.foursphere;
 
-import android.Manifest;
-import android.app.Activity;
 import android.content.Context;
-import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.location.Criteria;
+import android.content.DialogInterface;
 import android.location.Location;
-import android.location.LocationListener;
-import android.location.LocationManager;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.provider.Settings;
-import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.Fragment;
 import android.os.Bundle;
+import android.os.Handler;
+import android.support.v4.view.MenuItemCompat;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 
-import com.android.volley.Request;
-import com.android.volley.Response;
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
 import com.abraheemomari.foursphere.R;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  *  The main fragment of the app;
  *  Holds a scrollable RecyclerView which holds a view for each nearby restaurant
  */
 public class MainFragment extends Fragment{
+    //Number of rows from the end of the list at which the next page of venues is requested
+    private static final int PAGE_PREFETCH_DISTANCE = 10;
+
+    //Quiet time after a keystroke before the search runs, so typing a word costs one query
+    private static final long SEARCH_DEBOUNCE_MS = 150;
+
     public interface mainFragListener {
         public void restaurantSelected(Restaurant restaurant);
     }
 
     private Context context;
     private RecyclerView mRecyclerView;
-    private ArrayList<Restaurant> restaurants;
+    private RestaurantsAdapter adapter;
+    private ExplorePager pager;
+    private PhotoPrefetcher photoPrefetcher;
+    private RefreshPolicy refreshPolicy;
+    private VenueColumns restaurants;
     private mainFragListener listener;
     private Location lastKnownLocation;
+    //True while the venues shown were loaded around a stale or last queried location instead of a live fix
+    private boolean usingFallbackLocation;
+    //What the user is searching for, null while the list shows every nearby venue
+    private String searchQuery;
+    private final Handler searchHandler = new Handler();
+    private final Runnable searchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            search();
+        }
+    };
 
     public MainFragment() {
     }
@@ -59,6 +74,7 @@ public class MainFragment extends Fragment{
         context = this.getActivity().getApplicationContext();
 
         listener = (mainFragListener) this.getActivity();
+        setHasOptionsMenu(true);
 
         initialize(view);
 
@@ -71,8 +87,183 @@ public class MainFragment extends Fragment{
     }
 
     /**
-     * Creates a request to Foursquare's servers for nearby restaurants,
-     * and populates the RecyclerView with data
+     * Called with each location fix. The first one starts loading venues, later ones are passed to the refresh policy
+     * which re-ranks the list as the user walks and loads venues again once they leave the area queried.
+     * @param fallback true if this isn't a live fix but a stale or last queried location to show cached venues around
+     */
+    public void onLocationUpdated(Location location, boolean fallback)
+    {
+        boolean firstLocation = lastKnownLocation == null;
+        boolean replacesFallback = usingFallbackLocation && !fallback;
+        lastKnownLocation = location;
+
+        //Without a view, before it is created or after it is destroyed, the location is picked up by initialize
+        if (adapter == null) {
+            usingFallbackLocation = fallback;
+            return;
+        }
+
+        if (firstLocation || replacesFallback) {
+            usingFallbackLocation = fallback;
+            loadVenues();
+        } else {
+            refreshPolicy.onLocation(location);
+        }
+    }
+
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+        inflater.inflate(R.menu.menu_main, menu);
+
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(menu.findItem(R.id.action_search));
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                setSearchQuery(query, 0);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                setSearchQuery(newText, SEARCH_DEBOUNCE_MS);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_open_now:
+                item.setChecked(!item.isChecked());
+                adapter.setFilter(new ArrayList<>(adapter.getSelectedCategories()), item.isChecked());
+                return true;
+            case R.id.action_filter:
+                showCategoryFilter();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Lists the categories of the venues shown with how many venues each has, and filters the list as they are checked
+     */
+    private void showCategoryFilter()
+    {
+        final VenueFilterIndex index = adapter.getFilterIndex();
+        final boolean openOnly = adapter.isOpenOnly();
+        Set<String> selected = adapter.getSelectedCategories();
+
+        int count = index.getCategoryCount();
+        CharSequence[] labels = new CharSequence[count];
+        final boolean[] checked = new boolean[count];
+        for (int id = 0; id < count; ++id) {
+            labels[id] = index.getCategory(id) + " (" + index.countCategory(id, openOnly) + ")";
+            checked[id] = selected.contains(index.getCategory(id));
+        }
+
+        new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.filter)
+                .setMultiChoiceItems(labels, checked, new DialogInterface.OnMultiChoiceClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+                        checked[which] = isChecked;
+                        List<String> categories = new ArrayList<>();
+                        for (int id = 0; id < checked.length; ++id) {
+                            if (checked[id]) {
+                                categories.add(index.getCategory(id));
+                            }
+                        }
+                        adapter.setFilter(categories, openOnly);
+                    }
+                })
+                .setNeutralButton(R.string.clear_filter, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        adapter.setFilter(new ArrayList<String>(), openOnly);
+                    }
+                })
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    /**
+     * Searches the cached venues once the user stops typing for the delay. Clearing the search shows every venue again.
+     */
+    private void setSearchQuery(String query, long delay)
+    {
+        searchHandler.removeCallbacks(searchRunnable);
+        if (TextUtils.isEmpty(query.trim())) {
+            if (searchQuery != null) {
+                searchQuery = null;
+                VenueRepository.getInstance(context).cancelSearch();
+                showVenues();
+            }
+            return;
+        }
+
+        searchQuery = query;
+        searchHandler.postDelayed(searchRunnable, delay);
+    }
+
+    private void search()
+    {
+        if (searchQuery == null || adapter == null) {
+            return;
+        }
+        //Without any location yet, rank by relevance around the last place we queried
+        Location location = lastKnownLocation != null ? lastKnownLocation : VenueRepository.getInstance(context).getLastQueryLocation();
+        double latitude = location != null ? location.getLatitude() : 0;
+        double longitude = location != null ? location.getLongitude() : 0;
+
+        VenueRepository.getInstance(context).search(searchQuery, latitude, longitude, new VenueRepository.searchListener() {
+            @Override
+            public void searchResults(String query, VenueColumns results) {
+                if (adapter != null && query.equals(searchQuery)) {
+                    adapter.updateInOrder(results);
+                }
+            }
+        });
+    }
+
+    /**
+     * Shows the nearby venues ranked by distance, or the results of the current search
+     */
+    private void showVenues()
+    {
+        //A load or page finishing after the view was destroyed has nothing to show
+        if (adapter == null) {
+            return;
+        }
+        if (searchQuery != null) {
+            search();
+        } else if (lastKnownLocation != null) {
+            adapter.update(restaurants, lastKnownLocation);
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        VenueRepository.getInstance(context).cancel(this);
+        searchHandler.removeCallbacks(searchRunnable);
+        VenueRepository.getInstance(context).cancelSearch();
+        pager.cancel();
+        photoPrefetcher.cancel();
+        refreshPolicy.cancel();
+        Log.d("PhotoPrefetcher", photoPrefetcher.toString());
+
+        //Location fixes keep arriving from the activity, they must not reach a policy or adapter without a view
+        mRecyclerView.setAdapter(null);
+        adapter.setPhotoPrefetcher(null);
+        adapter = null;
+        refreshPolicy = null;
+    }
+
+    /**
+     * Shows the cached restaurants near the user straight away, and lets the repository
+     * refresh them from Foursquare's servers in the background
      * @param view The fragment's inflated layout
      */
     public void initialize(View view)
@@ -80,175 +271,124 @@ public class MainFragment extends Fragment{
         mRecyclerView = (RecyclerView) view.findViewById(R.id.recyclerview);
         mRecyclerView.addItemDecoration(new SimpleDividerItemDecoration(context));
 
-        restaurants = new ArrayList<>();
+        restaurants = new VenueColumns();
 
 
         // Create adapter and set listener
-        final RestaurantsAdapter.restaurantAdapterListener adapterListener = new RestaurantsAdapter.restaurantAdapterListener() {
+        RestaurantsAdapter.restaurantAdapterListener adapterListener = new RestaurantsAdapter.restaurantAdapterListener() {
             @Override
             public void restaurantSelected(Restaurant restaurant) {
                 listener.restaurantSelected(restaurant);
             }
         };
 
-        RestaurantsAdapter adapter = new RestaurantsAdapter(context, restaurants, adapterListener, lastKnownLocation);
+        //The adapter lives as long as the view and is updated with each new snapshot of restaurants
+        adapter = new RestaurantsAdapter(context, adapterListener);
 
         // Attach the adapter to the RecyclerView to populate views
         mRecyclerView.setAdapter(adapter);
         // Set layout manager to position the items
-        mRecyclerView.setLayoutManager(new LinearLayoutManager(context));
-
-        String latitude = String.valueOf(lastKnownLocation.getLatitude());
-        String longitude = String.valueOf(lastKnownLocation.getLongitude());
-
-            /***
-             * API info redacted
-             */
-            //Uses the Foursquare's "explore" end-point which is intended for finding unspecific new venues
-            String url = "https://api.foursquare.com/v2/venues/explore" +
-                    "?client_id=XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX" +
-                    "&client_secret=XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX" +
-                    "&v=20130815" +
-                    "&ll=" +
-                    latitude + "," + longitude +
-                    "&venuePhotos=1" +
-                    "&query=food";
-
-            JsonObjectRequest jsObjRequest = new JsonObjectRequest
-                    (Request.Method.GET, url, null, new Response.Listener<JSONObject>() {
-                        @Override
-                        public void onResponse(JSONObject response) {
-                            if (response != null) {
-                                try {
-                                    JSONObject meta = response.getJSONObject("meta");
-                                    //Check if request was successful
-                                    if (meta.getString("code").equals("200")) {
-                                        //JSON request was successful
-                                        JSONObject fsResponse = response.getJSONObject("response");
-                                        JSONArray groups = fsResponse.getJSONArray("groups");
-                                        //The "items" array represents an array of venues
-                                        JSONArray items = groups.getJSONObject(0).getJSONArray("items");
-
-                                        for (int i = 0; i < items.length(); ++i) {
-                                            String venueId = "";
-                                            String venueName = "";
-                                            String venueCategory = "";
-                                            double latitude = 0;
-                                            double longitude = 0;
-                                            String photoURL = "";
-                                            String isOpen = "";
-
-                                            JSONObject item = items.getJSONObject(i);
-                                            JSONObject venue = item.getJSONObject("venue");
-                                            venueId = venue.getString("id");
-                                            venueName = venue.getString("name");
-
-                                            JSONObject location = venue.getJSONObject("location");
-                                            latitude = Double.valueOf(location.getString("lat"));
-                                            longitude = Double.valueOf(location.getString("lng"));
-
-                                            JSONArray categories = venue.getJSONArray("categories");
-                                            //First category in array is the primary category
-                                            JSONObject category = categories.getJSONObject(0);
-                                            venueCategory = category.getString("shortName");
-
-                                            JSONObject photos = venue.getJSONObject("photos");
-                                            int photoCount = photos.getInt("count");
-                                            //Checks if venue photos are available before attempting to retrieve them
-                                            if (photoCount > 0) {
-                                                JSONArray photoGroup = photos.getJSONArray("groups");
-                                                //Get first photo available for simplicity
-                                                JSONArray photoItems = photoGroup.getJSONObject(0).getJSONArray("items");
-                                                photoURL = photoJSONToURL(photoItems.getJSONObject(0));
-                                            }
-
-                                            //Hours aren't gauranteed to be available
-                                            if (venue.has("hours")) {
-                                                JSONObject hours = venue.getJSONObject("hours");
-                                                isOpen = hours.getString("isOpen");
-                                            }
-
-                                            //Add the venue to the database if it doesn't already exist
-                                            if (!Database.getInstance(context).venueExists(venueId)) {
-                                                Database.getInstance(context).addVenue(venueId, venueName, venueCategory, latitude, longitude, photoURL);
-                                            }
-
-                                            //Finally, add the venue to restaurants array
-                                            restaurants.add(new Restaurant(venueName, latitude, longitude, venueCategory, isOpen, photoURL));
-
-                                        }
-
-                                        //After processing each venue separately, update the RecyclerViews adapter
-                                        RestaurantsAdapter adapter = new RestaurantsAdapter(context, restaurants, adapterListener, lastKnownLocation);
-                                        mRecyclerView.swapAdapter(adapter, true);
-                                    } else {
-                                        //JSON request failed
-                                        Log.e("Error", "Foursquare not returning code:200 in JSON Response");
-                                    }
-                                } catch (JSONException e) {
-                                    e.printStackTrace();
-                                    Log.e("Error", "Most likely a JSONObject or Array was not found");
-                                }
-                            }
+        LinearLayoutManager layoutManager = new LinearLayoutManager(context);
+        mRecyclerView.setLayoutManager(layoutManager);
 
-                        }
-                    }, new Response.ErrorListener() {
-                        @Override
-                        public void onErrorResponse(VolleyError error) {
-                            Log.e("Error", "No response from foursquare");
-                        }
-                    });
+        //Load more venues as the user nears the end of the list
+        pager = new ExplorePager(context, layoutManager, PAGE_PREFETCH_DISTANCE, new VenueRepository.pageListener() {
+            @Override
+            public void pageLoaded(VenueColumns page, List<ExploreQuery> exhausted) {
+                mergeVenues(page);
+                showVenues();
+            }
 
+            @Override
+            public void pageFailed() {
+            }
+        });
+        mRecyclerView.addOnScrollListener(pager);
 
-        //Check for internet connectivity
-        boolean connected = false;
-        try {
-            ConnectivityManager connectivityManager = (ConnectivityManager) context
-                    .getSystemService(Context.CONNECTIVITY_SERVICE);
+        //Warm the photos of the rows about to scroll into view
+        photoPrefetcher = new PhotoPrefetcher(context, layoutManager, adapter);
+        mRecyclerView.addOnScrollListener(photoPrefetcher);
+        adapter.setPhotoPrefetcher(photoPrefetcher);
 
-            NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
-            connected = networkInfo != null && networkInfo.isAvailable() && networkInfo.isConnected();
-        } catch (Exception e) {
-            e.printStackTrace();
-            Log.e("Error", "Problem checking for internet connection");
-        }
+        refreshPolicy = new RefreshPolicy(new RefreshPolicy.refreshListener() {
+            @Override
+            public void rerank(Location location) {
+                showVenues();
+            }
 
-        // If we have access to the internet then add the request ot the volley queue
-        // if we don't have internet access, then retrieve cached data from database
-        if (connected)
-        {
-            VolleySingleton.getInstance(context).addToRequestQueue(jsObjRequest);
-        }
-        else
-        {
-            //Check if the database actually has data in it already
-            if (Database.getInstance(context).isInitialized()) {
-                restaurants = Database.getInstance(context).getVenues();
-                adapter = new RestaurantsAdapter(context, restaurants, adapterListener, lastKnownLocation);
-                mRecyclerView.swapAdapter(adapter, true);
+            @Override
+            public void requery(Location location) {
+                loadVenues();
             }
+        });
+
+        //Without a location yet, loading starts with the first fix delivered to onLocationUpdated
+        if (lastKnownLocation != null) {
+            loadVenues();
+        } else {
+            //Draw the venues shown last while waiting, without opening SQLite
+            VenueRepository.getInstance(context).loadSnapshot(new VenueRepository.snapshotListener() {
+                @Override
+                public void snapshotLoaded(VenueColumns snapshot, Location location) {
+                    if (adapter != null && restaurants.isEmpty()) {
+                        restaurants = snapshot;
+                        adapter.update(restaurants, lastKnownLocation != null ? lastKnownLocation : location);
+                    }
+                }
+            });
         }
     }
 
+    /**
+     * Shows the restaurants cached around the current location and starts paging from it
+     */
+    private void loadVenues()
+    {
+        refreshPolicy.queried(lastKnownLocation);
+        pager.setLocation(lastKnownLocation.getLatitude(), lastKnownLocation.getLongitude());
+
+        final double latitude = lastKnownLocation.getLatitude();
+        final double longitude = lastKnownLocation.getLongitude();
+        VenueRepository.getInstance(context).load(latitude, longitude, this,
+                new VenueRepository.venueListener() {
+                    @Override
+                    public void venuesLoaded(VenueColumns cached) {
+                        //Copied, since mergeVenues changes the list in place
+                        restaurants = cached.copy();
+                        showVenues();
+                    }
+
+                    @Override
+                    public void venuesChanged(VenueColumns changed) {
+                        mergeVenues(changed);
+                        showVenues();
+                    }
+
+                    @Override
+                    public void venuesRefreshed() {
+                        //The next cold start draws this refreshed list straight from the snapshot
+                        VenueRepository.getInstance(context).saveSnapshot(restaurants, latitude, longitude);
+                    }
+                });
+    }
 
     /**
-     * Converts Foursquare's photo JSONObject into a usable URL
-     * @param photo Foursquare's photo JSONObject
-     * @return URL of photo
+     * Replaces restaurants we already list with their changed version and appends new ones
      */
-    private String photoJSONToURL(JSONObject photo)
+    private void mergeVenues(VenueColumns changed)
     {
-        String prefix = null;
-        try {
-            prefix = photo.getString("prefix").replace("\\", "");
-            String suffix = photo.getString("suffix").replace("\\", "");
-            String width = photo.getString("width");
-            String height = photo.getString("height");
-
-            return prefix + width + "x" + height + suffix;
-        } catch (JSONException e) {
-            e.printStackTrace();
-            return null;
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < restaurants.size(); ++i) {
+            positions.put(restaurants.getId(i), i);
+        }
+
+        for (int i = 0; i < changed.size(); ++i) {
+            Integer position = positions.get(changed.getId(i));
+            if (position != null) {
+                restaurants.set(position, changed, i);
+            } else {
+                restaurants.add(changed, i);
+            }
         }
     }
 }
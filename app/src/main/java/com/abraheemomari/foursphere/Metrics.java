@@ -0,0 +1,284 @@
+package com.abraheemomari.foursphere;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-app registry of counters and latency histograms for the stages of a refresh.
+ * Each timed stage also shows up as a named section in systrace on API 18 and above.
+ * The registry can be dumped as JSON with per-stage percentiles, see toJson.
+ *
+ * Disabled by default, in which case every call returns after reading a single volatile flag.
+ * Safe to use from any thread.
+ */
+public final class Metrics {
+
+    public static final String STAGE_NETWORK_EXPLORE = "network_explore";
+    public static final String STAGE_NETWORK_IMAGE = "network_image";
+    public static final String STAGE_PARSE_EXPLORE = "parse_explore";
+    public static final String STAGE_DB_WRITE_VENUES = "db_write_venues";
+    public static final String STAGE_DB_VENUES_NEAR = "db_venues_near";
+    public static final String STAGE_SNAPSHOT_READ = "snapshot_read";
+    public static final String STAGE_RANK_VENUES = "rank_venues";
+    public static final String STAGE_DIFF_VENUES = "diff_venues";
+    public static final String STAGE_SEARCH_VENUES = "search_venues";
+
+    public static final String COUNTER_HTTP_NOT_MODIFIED = "http_not_modified";
+    public static final String COUNTER_NETWORK_BYTES = "network_bytes";
+    public static final String COUNTER_BITMAP_CACHE_HIT = "bitmap_cache_hit";
+    public static final String COUNTER_BITMAP_CACHE_MISS = "bitmap_cache_miss";
+    public static final String COUNTER_LOCATION_JITTER = "location_jitter";
+    public static final String COUNTER_LOCATION_REQUERY = "location_requery";
+    public static final String COUNTER_EXPLORE_QUERY_DROPPED = "explore_query_dropped";
+
+    private static volatile boolean enabled;
+
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    //Start of the window the metrics cover, set when they are first enabled
+    private static volatile long resetAt;
+
+    private Metrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        if (enabled && resetAt == 0) {
+            resetAt = SystemClock.elapsedRealtime();
+        }
+        Metrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing a stage on the current thread, which must end it with end
+     * @return Token to pass to end, 0 if metrics are disabled
+     */
+    public static long start(String stage) {
+        if (!enabled) {
+            return 0;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(stage);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends a stage started on the current thread and records its duration
+     * @param startToken Value returned by start
+     */
+    public static void end(String stage, long startToken) {
+        //Checking the token rather than the flag keeps trace sections balanced if metrics are toggled mid-stage
+        if (startToken == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - startToken;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+        histogram(stage).record(nanos / 1000);
+    }
+
+    /**
+     * Records a duration measured elsewhere, such as on a network thread
+     */
+    public static void record(String stage, long micros) {
+        if (!enabled) {
+            return;
+        }
+        histogram(stage).record(micros);
+    }
+
+    public static void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public static void add(String counter, long amount) {
+        if (!enabled) {
+            return;
+        }
+        AtomicLong value = counters.get(counter);
+        if (value == null) {
+            synchronized (counters) {
+                value = counters.get(counter);
+                if (value == null) {
+                    value = new AtomicLong();
+                    counters.put(counter, value);
+                }
+            }
+        }
+        value.addAndGet(amount);
+    }
+
+    private static Histogram histogram(String stage) {
+        Histogram histogram = histograms.get(stage);
+        if (histogram == null) {
+            synchronized (histograms) {
+                histogram = histograms.get(stage);
+                if (histogram == null) {
+                    histogram = new Histogram();
+                    histograms.put(stage, histogram);
+                }
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Clears every counter and histogram
+     */
+    public static void reset() {
+        histograms.clear();
+        counters.clear();
+        resetAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return Counters, and the count, mean, p50, p90, p99 and max in microseconds of each stage
+     */
+    public static JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("enabled", enabled);
+            json.put("device", Build.MODEL);
+            json.put("sdk", Build.VERSION.SDK_INT);
+            json.put("window_ms", SystemClock.elapsedRealtime() - resetAt);
+
+            JSONObject counterJson = new JSONObject();
+            for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+                counterJson.put(counter.getKey(), counter.getValue().get());
+            }
+            json.put("counters", counterJson);
+
+            JSONObject stageJson = new JSONObject();
+            for (Map.Entry<String, Histogram> stage : histograms.entrySet()) {
+                stageJson.put(stage.getKey(), stage.getValue().toJson());
+            }
+            json.put("stages", stageJson);
+        } catch (JSONException e) {
+            Log.e("Error", "Could not write metrics as JSON", e);
+        }
+        return json;
+    }
+
+    /**
+     * Writes toJson to the file
+     * @return true if the file was written
+     */
+    public static boolean dumpToFile(File file) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(toJson().toString().getBytes("UTF-8"));
+            return true;
+        } catch (IOException e) {
+            Log.e("Error", "Could not write metrics to " + file, e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Lock-free histogram with logarithmic buckets, four per power of two,
+     * so any percentile it reports is within 25% of the true value
+     */
+    static class Histogram {
+        //Enough for durations up to about 12 days in microseconds
+        private static final int BUCKETS = 4 + 38 * 4;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long micros) {
+            if (micros < 0) {
+                micros = 0;
+            }
+            buckets.incrementAndGet(Math.min(bucketOf(micros), BUCKETS - 1));
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+
+            long currentMax;
+            do {
+                currentMax = max.get();
+            } while (micros > currentMax && !max.compareAndSet(currentMax, micros));
+        }
+
+        static int bucketOf(long value) {
+            if (value < 4) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - 2)) & 3;
+            return 4 + (exponent - 2) * 4 + subBucket;
+        }
+
+        /**
+         * @return Largest value that falls in the bucket
+         */
+        static long upperBoundOf(int bucket) {
+            if (bucket < 4) {
+                return bucket;
+            }
+            int exponent = (bucket - 4) / 4 + 2;
+            int subBucket = (bucket - 4) % 4;
+            return ((4L + subBucket + 1) << (exponent - 2)) - 1;
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         * @return Upper bound of the bucket holding the percentile, capped at the largest value recorded
+         */
+        long percentile(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        JSONObject toJson() throws JSONException {
+            long total = count.get();
+            JSONObject json = new JSONObject();
+            json.put("count", total);
+            json.put("mean_us", total == 0 ? 0 : sum.get() / total);
+            json.put("p50_us", percentile(50));
+            json.put("p90_us", percentile(90));
+            json.put("p99_us", percentile(99));
+            json.put("max_us", max.get());
+            return json;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.abraheemomari.foursphere;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.View;
+
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.ImageLoader;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Warms the image cache with the photos of the rows just ahead of the viewport, on the prefetch lane.
+ * The number of rows warmed grows with the scroll velocity, the expected bytes in flight are capped,
+ * and prefetches for rows the scroll has moved past are cancelled. A row that comes into view while its
+ * photo is downloading joins the download, and one whose prefetch is still queued loads it on the visible lane.
+ *
+ * Photos are loaded at the size the row's NetworkImageView asks for, so they are cached under the same key
+ * and a prefetched photo is already decoded when its row is bound.
+ */
+public class PhotoPrefetcher extends RecyclerView.OnScrollListener {
+
+    //Rows always warmed ahead of the viewport, even when the list is still
+    public static final int DEFAULT_ROWS_AHEAD = 4;
+
+    //Upper bound on the rows warmed however fast the list is flung
+    private static final int MAX_ROWS_AHEAD = 20;
+
+    //Rows the list will scroll through in this long at its current velocity are warmed too
+    private static final long LOOKAHEAD_MS = 1000;
+
+    //Weight of the previous velocity when smoothing, so a single jumpy frame doesn't resize the window
+    private static final double VELOCITY_SMOOTHING = 0.6;
+
+    //About eight photos of the size Foursquare usually sends
+    public static final long DEFAULT_MAX_BYTES_IN_FLIGHT = 200 * 1024;
+
+    //A pending prefetch and the bytes it was expected to take when it was issued
+    private static class Prefetch {
+        final ImageLoader.ImageContainer container;
+        final long expectedBytes;
+
+        Prefetch(ImageLoader.ImageContainer container, long expectedBytes) {
+            this.container = container;
+            this.expectedBytes = expectedBytes;
+        }
+    }
+
+    private final LinearLayoutManager layoutManager;
+    private final RestaurantsAdapter adapter;
+    private final VolleySingleton volley;
+    private final ImageLoader imageLoader;
+    //Photo URL to its pending prefetch
+    private final Map<String, Prefetch> inFlight = new HashMap<>();
+    private long bytesInFlight;
+
+    private int rowsAhead = DEFAULT_ROWS_AHEAD;
+    private long maxBytesInFlight = DEFAULT_MAX_BYTES_IN_FLIGHT;
+
+    private int photoWidth;
+    private int photoHeight;
+    private int direction = 1;
+    private double rowsPerMs;
+    private long lastScrollTime;
+    private int lastFirstVisible = RecyclerView.NO_POSITION;
+    private int lastLastVisible = RecyclerView.NO_POSITION;
+
+    private int hits;
+    private int misses;
+    private int issued;
+    private int completed;
+    private int cancelled;
+    private int failed;
+    private int adopted;
+    private int reissued;
+
+    public PhotoPrefetcher(Context context, LinearLayoutManager layoutManager, RestaurantsAdapter adapter) {
+        this.layoutManager = layoutManager;
+        this.adapter = adapter;
+        volley = VolleySingleton.getInstance(context);
+        imageLoader = volley.getPrefetchImageLoader();
+    }
+
+    /**
+     * @param rows Rows warmed ahead of the viewport when the list isn't moving
+     */
+    public void setRowsAhead(int rows) {
+        rowsAhead = rows;
+    }
+
+    /**
+     * Caps the bytes the pending prefetches are expected to take, see VolleySingleton.getExpectedImageBytes.
+     * One prefetch is always let through, however large.
+     */
+    public void setMaxBytesInFlight(long bytes) {
+        maxBytesInFlight = bytes;
+    }
+
+    /**
+     * Hands a pending prefetch over to a row being bound, so it is no longer cancelled or capped here.
+     * A prefetch already downloading is joined so the photo isn't fetched twice, one still waiting
+     * behind the prefetch lane's thread cap is cancelled so the row doesn't wait behind other prefetches.
+     * @return The prefetch lane's loader if the row should join its download,
+     * or null if the row should load the photo on the visible lane
+     */
+    public ImageLoader adopt(String url) {
+        Prefetch prefetch = url != null ? inFlight.remove(url) : null;
+        if (prefetch == null) {
+            return null;
+        }
+        bytesInFlight -= prefetch.expectedBytes;
+        if (volley.getHttpStack().isOnTheWire(url)) {
+            ++adopted;
+            return imageLoader;
+        }
+        prefetch.container.cancelRequest();
+        ++reissued;
+        return null;
+    }
+
+    /**
+     * Cancels every pending prefetch
+     */
+    public void cancel() {
+        for (Prefetch prefetch : inFlight.values()) {
+            prefetch.container.cancelRequest();
+        }
+        cancelled += inFlight.size();
+        inFlight.clear();
+        bytesInFlight = 0;
+    }
+
+    @Override
+    public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            rowsPerMs = 0;
+            lastScrollTime = 0;
+        }
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        int first = layoutManager.findFirstVisibleItemPosition();
+        //Visible positions can briefly run past the adapter while a removal is animating
+        int last = Math.min(layoutManager.findLastVisibleItemPosition(), adapter.getItemCount() - 1);
+        if (first == RecyclerView.NO_POSITION || last < first) {
+            return;
+        }
+
+        View firstRow = layoutManager.findViewByPosition(first);
+        if (firstRow != null) {
+            measurePhoto(firstRow);
+            updateVelocity(dy, firstRow.getHeight());
+        }
+        if (dy != 0) {
+            direction = dy > 0 ? 1 : -1;
+        }
+
+        if (photoWidth > 0 && photoHeight > 0) {
+            countNewlyVisible(first, last);
+            prefetch(first, last);
+        }
+        lastFirstVisible = first;
+        lastLastVisible = last;
+    }
+
+    /**
+     * Learns the size the rows' NetworkImageViews load their photos at
+     */
+    private void measurePhoto(View row) {
+        if (photoWidth > 0 && photoHeight > 0) {
+            return;
+        }
+        View imageView = row.findViewById(R.id.imageView);
+        if (imageView != null) {
+            photoWidth = imageView.getWidth();
+            photoHeight = imageView.getHeight();
+        }
+    }
+
+    private void updateVelocity(int dy, int rowHeight) {
+        long now = SystemClock.uptimeMillis();
+        if (lastScrollTime != 0 && now > lastScrollTime && rowHeight > 0) {
+            double instant = Math.abs(dy) / (double) rowHeight / (now - lastScrollTime);
+            rowsPerMs = rowsPerMs * VELOCITY_SMOOTHING + instant * (1 - VELOCITY_SMOOTHING);
+        }
+        lastScrollTime = now;
+    }
+
+    /**
+     * Counts each row that just came into view as a hit if its photo was already decoded in memory
+     */
+    private void countNewlyVisible(int first, int last) {
+        for (int position = first; position <= last; ++position) {
+            if (position >= lastFirstVisible && position <= lastLastVisible) {
+                continue;
+            }
+            String url = adapter.getPhotoURL(position);
+            if (TextUtils.isEmpty(url)) {
+                continue;
+            }
+            if (imageLoader.isCached(url, photoWidth, photoHeight)) {
+                ++hits;
+            } else {
+                ++misses;
+            }
+        }
+    }
+
+    private void prefetch(int first, int last) {
+        int ahead = rowsAhead + (int) Math.round(rowsPerMs * LOOKAHEAD_MS);
+        ahead = Math.min(ahead, MAX_ROWS_AHEAD);
+
+        int itemCount = adapter.getItemCount();
+        int start;
+        int end;
+        if (direction > 0) {
+            start = last + 1;
+            end = Math.min(itemCount - 1, last + ahead);
+        } else {
+            start = first - 1;
+            end = Math.max(0, first - ahead);
+        }
+
+        //Collect the window nearest row first, and drop prefetches that fell outside it
+        Set<String> window = new HashSet<>();
+        String[] urls = new String[Math.abs(end - start) + 1];
+        int count = 0;
+        for (int position = start; direction > 0 ? position <= end : position >= end; position += direction) {
+            String url = adapter.getPhotoURL(position);
+            if (!TextUtils.isEmpty(url)) {
+                window.add(url);
+                urls[count++] = url;
+            }
+        }
+
+        Iterator<Map.Entry<String, Prefetch>> iterator = inFlight.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Prefetch> entry = iterator.next();
+            if (!window.contains(entry.getKey())) {
+                entry.getValue().container.cancelRequest();
+                bytesInFlight -= entry.getValue().expectedBytes;
+                iterator.remove();
+                ++cancelled;
+            }
+        }
+
+        long expectedBytes = volley.getExpectedImageBytes();
+        for (int i = 0; i < count; ++i) {
+            if (!inFlight.isEmpty() && bytesInFlight + expectedBytes > maxBytesInFlight) {
+                break;
+            }
+            String url = urls[i];
+            if (inFlight.containsKey(url) || imageLoader.isCached(url, photoWidth, photoHeight)) {
+                continue;
+            }
+            //Put first, a photo in the disk cache can answer before get returns
+            Prefetch prefetch = new Prefetch(imageLoader.get(url, new PrefetchListener(url), photoWidth, photoHeight),
+                    expectedBytes);
+            inFlight.put(url, prefetch);
+            bytesInFlight += expectedBytes;
+            ++issued;
+        }
+    }
+
+    private class PrefetchListener implements ImageLoader.ImageListener {
+        private final String url;
+
+        PrefetchListener(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public void onResponse(ImageLoader.ImageContainer response, boolean isImmediate) {
+            //The loader first answers immediately with an empty container while the photo loads
+            if (response.getBitmap() == null) {
+                return;
+            }
+            if (finished(url)) {
+                ++completed;
+            }
+        }
+
+        @Override
+        public void onErrorResponse(VolleyError error) {
+            if (finished(url)) {
+                ++failed;
+            }
+        }
+    }
+
+    /**
+     * @return true if the URL's prefetch was still pending here
+     */
+    private boolean finished(String url) {
+        Prefetch prefetch = inFlight.remove(url);
+        if (prefetch == null) {
+            return false;
+        }
+        bytesInFlight -= prefetch.expectedBytes;
+        return true;
+    }
+
+    /**
+     * @return Rows whose photo was already in memory when they came into view
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Rows whose photo still had to load when they came into view
+     */
+    public int getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Share of rows that came into view with their photo ready, or 0 before any row has
+     */
+    public double getHitRate() {
+        int total = hits + misses;
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    public void resetStats() {
+        hits = 0;
+        misses = 0;
+        issued = 0;
+        completed = 0;
+        cancelled = 0;
+        failed = 0;
+        adopted = 0;
+        reissued = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits + " misses=" + misses + " hitRate=" + getHitRate() + " issued=" + issued
+                + " completed=" + completed + " cancelled=" + cancelled + " failed=" + failed + " adopted=" + adopted + " reissued=" + reissued
+                + " rowsAhead=" + rowsAhead;
+    }
+}
@@ -0,0 +1,146 @@
+package com.abraheemomari.foursphere;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Decides what each location fix costs. Moves within the fix's own accuracy are jitter and ignored,
+ * moves inside the requery radius around the last query center only re-rank the venues already listed,
+ * and only leaving that radius fires a new query. A query waits a short debounce for the fixes
+ * after it, is dropped if one of them comes back inside the radius, and is never sent sooner than
+ * the minimum interval after the previous one.
+ *
+ * Must be used from the main thread.
+ */
+public class RefreshPolicy {
+
+    public interface refreshListener {
+        /**
+         * Called when the user moved enough to change the order of the venues listed
+         */
+        public void rerank(Location location);
+
+        /**
+         * Called when the user left the radius around the last query center and venues should be loaded around the location
+         */
+        public void requery(Location location);
+    }
+
+    public static final float DEFAULT_REQUERY_RADIUS_METERS = 500;
+
+    //Moves shorter than this never re-rank, even with perfectly accurate fixes
+    private static final float MIN_RERANK_DISTANCE_METERS = 25;
+
+    //Time a fix outside the radius waits for a later one that takes it back
+    private static final long DEBOUNCE_MS = 5000;
+
+    public static final long DEFAULT_MIN_REQUERY_INTERVAL_MS = 60 * 1000;
+
+    private final refreshListener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private float requeryRadius = DEFAULT_REQUERY_RADIUS_METERS;
+    private long minRequeryInterval = DEFAULT_MIN_REQUERY_INTERVAL_MS;
+
+    private Location queryCenter;
+    private long queriedAt;
+    private Location rankedAt;
+    //Latest fix outside the radius, waiting for its requery to run
+    private Location pendingLocation;
+
+    public RefreshPolicy(refreshListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets how far from the last query center the user can move before venues are queried again
+     */
+    public void setRequeryRadius(float meters) {
+        requeryRadius = meters;
+    }
+
+    /**
+     * Sets the least time between two queries, however fast the user moves
+     */
+    public void setMinRequeryInterval(long millis) {
+        minRequeryInterval = millis;
+    }
+
+    /**
+     * Records that venues were just queried around the location, which becomes the center of the radius
+     */
+    public void queried(Location location) {
+        cancel();
+        queryCenter = location;
+        queriedAt = SystemClock.elapsedRealtime();
+        rankedAt = location;
+    }
+
+    /**
+     * Re-ranks, requeries or ignores the fix. Does nothing until the first query is recorded.
+     */
+    public void onLocation(Location location) {
+        if (queryCenter == null) {
+            return;
+        }
+
+        //Only a move beyond the fix's own uncertainty counts, so a jittery fix can't look like leaving the radius
+        float accuracy = location.hasAccuracy() ? location.getAccuracy() : 0;
+        if (location.distanceTo(queryCenter) - accuracy > requeryRadius) {
+            scheduleRequery(location);
+            return;
+        }
+
+        //Back inside the radius before the pending query ran
+        if (pendingLocation != null) {
+            cancel();
+        }
+
+        if (location.distanceTo(rankedAt) > Math.max(accuracy, MIN_RERANK_DISTANCE_METERS)) {
+            rankedAt = location;
+            listener.rerank(location);
+        } else {
+            Metrics.increment(Metrics.COUNTER_LOCATION_JITTER);
+        }
+    }
+
+    private void scheduleRequery(Location location) {
+        boolean scheduled = pendingLocation != null;
+        pendingLocation = location;
+        //Keep the list in order while the query waits
+        if (location.distanceTo(rankedAt) > MIN_RERANK_DISTANCE_METERS) {
+            rankedAt = location;
+            listener.rerank(location);
+        }
+        if (scheduled) {
+            return;
+        }
+
+        long sinceQuery = SystemClock.elapsedRealtime() - queriedAt;
+        handler.postDelayed(requery, Math.max(DEBOUNCE_MS, minRequeryInterval - sinceQuery));
+    }
+
+    private final Runnable requery = new Runnable() {
+        @Override
+        public void run() {
+            Location location = pendingLocation;
+            pendingLocation = null;
+            if (location == null) {
+                return;
+            }
+            queried(location);
+            Metrics.increment(Metrics.COUNTER_LOCATION_REQUERY);
+            listener.requery(location);
+        }
+    };
+
+    /**
+     * Drops the pending query, if any
+     */
+    public void cancel() {
+        handler.removeCallbacks(requery);
+        pendingLocation = null;
+    }
+}
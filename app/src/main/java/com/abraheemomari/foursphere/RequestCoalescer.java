@@ -0,0 +1,255 @@
+package com.abraheemomari.foursphere;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Shares one network call between every request for the same normalized URL.
+ * A request whose key matches one already in flight subscribes to it instead of being sent again,
+ * and a short-lived memo answers repeats that arrive just after a response.
+ * Keys are URLs with their "ll" coordinates rounded, so fixes a few meters apart share a call.
+ *
+ * Must only be used from the main thread, which is also where Volley delivers responses.
+ */
+public class RequestCoalescer {
+
+    public interface requestFactory<T> {
+        /**
+         * @return The request to send, delivering to the given listeners
+         */
+        public Request<T> create(Response.Listener<T> listener, Response.ErrorListener errorListener);
+    }
+
+    //Decimal places kept in coordinates, 3 is about 110 meters
+    public static final int DEFAULT_COORDINATE_PRECISION = 3;
+
+    public static final long DEFAULT_MEMO_TTL_MS = 5000;
+
+    private static class Subscriber<T> {
+        final Object tag;
+        final Response.Listener<T> listener;
+        final Response.ErrorListener errorListener;
+
+        Subscriber(Object tag, Response.Listener<T> listener, Response.ErrorListener errorListener) {
+            this.tag = tag;
+            this.listener = listener;
+            this.errorListener = errorListener;
+        }
+    }
+
+    private static class InFlight<T> {
+        Request<T> request;
+        final List<Subscriber<T>> subscribers = new ArrayList<>();
+    }
+
+    private static class Memo {
+        final Object result;
+        final long time;
+
+        Memo(Object result, long time) {
+            this.result = result;
+            this.time = time;
+        }
+    }
+
+    //Memo hit waiting to be delivered on the main thread
+    private abstract class MemoDelivery implements Runnable {
+        final Object tag;
+
+        MemoDelivery(Object tag) {
+            this.tag = tag;
+        }
+
+        abstract void deliver();
+
+        @Override
+        public void run() {
+            memoDeliveries.remove(this);
+            deliver();
+        }
+    }
+
+    private final RequestQueue requestQueue;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, InFlight<?>> inFlight = new HashMap<>();
+    private final Map<String, Memo> memos = new HashMap<>();
+    private final List<MemoDelivery> memoDeliveries = new ArrayList<>();
+    private int coordinatePrecision = DEFAULT_COORDINATE_PRECISION;
+    private long memoTtl = DEFAULT_MEMO_TTL_MS;
+
+    public RequestCoalescer(RequestQueue requestQueue) {
+        this.requestQueue = requestQueue;
+    }
+
+    /**
+     * @param precision Number of decimal places kept in the coordinates of a key
+     */
+    public void setCoordinatePrecision(int precision) {
+        coordinatePrecision = precision;
+    }
+
+    /**
+     * @param ttlMillis How long a response answers repeated requests without a network call, 0 to disable
+     */
+    public void setMemoTtl(long ttlMillis) {
+        memoTtl = ttlMillis;
+        memos.clear();
+    }
+
+    /**
+     * Subscribes to the call for the URL, starting one with the factory if none is in flight
+     * @param tag Tag used to unsubscribe with cancel
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void add(String url, Object tag, requestFactory<T> factory,
+                        final Response.Listener<T> listener, Response.ErrorListener errorListener) {
+        final String key = normalizeKey(url, coordinatePrecision);
+
+        final Memo memo = memos.get(key);
+        if (memo != null) {
+            if (SystemClock.elapsedRealtime() - memo.time < memoTtl) {
+                //Still deliver asynchronously, as a network response would be, and cancellable by tag until then
+                MemoDelivery delivery = new MemoDelivery(tag) {
+                    @Override
+                    void deliver() {
+                        listener.onResponse(shared((T) memo.result));
+                    }
+                };
+                memoDeliveries.add(delivery);
+                mainHandler.post(delivery);
+                return;
+            }
+            memos.remove(key);
+        }
+
+        InFlight<T> call = (InFlight<T>) inFlight.get(key);
+        if (call == null) {
+            call = new InFlight<>();
+            final InFlight<T> newCall = call;
+            call.request = factory.create(new Response.Listener<T>() {
+                @Override
+                public void onResponse(T response) {
+                    inFlight.remove(key);
+                    if (memoTtl > 0) {
+                        pruneMemos();
+                        memos.put(key, new Memo(response, SystemClock.elapsedRealtime()));
+                    }
+                    T sharedResponse = shared(response);
+                    for (Subscriber<T> subscriber : newCall.subscribers) {
+                        subscriber.listener.onResponse(sharedResponse);
+                    }
+                }
+            }, new Response.ErrorListener() {
+                @Override
+                public void onErrorResponse(VolleyError error) {
+                    inFlight.remove(key);
+                    for (Subscriber<T> subscriber : newCall.subscribers) {
+                        subscriber.errorListener.onErrorResponse(error);
+                    }
+                }
+            });
+            inFlight.put(key, call);
+            requestQueue.add(call.request);
+        }
+        call.subscribers.add(new Subscriber<>(tag, listener, errorListener));
+    }
+
+    /**
+     * Every subscriber is handed the same response, so a list is delivered read-only
+     * and no subscriber can change what the others see
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T shared(T response) {
+        if (response instanceof List) {
+            return (T) Collections.unmodifiableList((List<?>) response);
+        }
+        return response;
+    }
+
+    private void pruneMemos() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Memo> iterator = memos.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().time >= memoTtl) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Unsubscribes everything added with the tag. Calls left without subscribers are cancelled.
+     */
+    public void cancel(Object tag) {
+        Iterator<MemoDelivery> deliveries = memoDeliveries.iterator();
+        while (deliveries.hasNext()) {
+            MemoDelivery delivery = deliveries.next();
+            if (delivery.tag == tag) {
+                mainHandler.removeCallbacks(delivery);
+                deliveries.remove();
+            }
+        }
+
+        Iterator<InFlight<?>> calls = inFlight.values().iterator();
+        while (calls.hasNext()) {
+            InFlight<?> call = calls.next();
+            Iterator<? extends Subscriber<?>> subscribers = call.subscribers.iterator();
+            while (subscribers.hasNext()) {
+                if (subscribers.next().tag == tag) {
+                    subscribers.remove();
+                }
+            }
+            if (call.subscribers.isEmpty()) {
+                call.request.cancel();
+                calls.remove();
+            }
+        }
+    }
+
+    /**
+     * Rounds the coordinates of the URL's "ll" parameter, leaving the rest of the URL as it is
+     * @param precision Number of decimal places kept in the coordinates
+     */
+    public static String normalizeKey(String url, int precision) {
+        int start = url.indexOf("?ll=");
+        if (start < 0) {
+            start = url.indexOf("&ll=");
+        }
+        if (start < 0) {
+            return url;
+        }
+        start += 4;
+
+        int end = url.indexOf('&', start);
+        if (end < 0) {
+            end = url.length();
+        }
+
+        String[] coordinates = url.substring(start, end).split(",");
+        if (coordinates.length != 2) {
+            return url;
+        }
+
+        try {
+            String format = "%." + precision + "f,%." + precision + "f";
+            String rounded = String.format(Locale.US, format,
+                    Double.parseDouble(coordinates[0]), Double.parseDouble(coordinates[1]));
+            return url.substring(0, start) + rounded + url.substring(end);
+        } catch (NumberFormatException e) {
+            return url;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.abraheemomari.foursphere;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.JsonReader;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzipped copies of the raw bodies of explore responses, one file per location tile and query,
+ * evicted least recently used first once the journal outgrows its size.
+ * The VENUES table only keeps the fields the list needed when it was written, the journal keeps
+ * everything Foursquare sent, so venues can be parsed again with every field, e.g. whether they are open,
+ * without a network round-trip. Nothing is parsed until it is read.
+ *
+ * Entry layout, inside the gzip stream: version, time saved, charset of the body, body length, body.
+ *
+ * Thread safe, but every method other than key touches the disk, so never call them on the main thread.
+ */
+public class ResponseJournal {
+
+    private static final int VERSION = 1;
+
+    private static final String DIRECTORY = "journal";
+
+    //Explore bodies gzip to roughly a tenth of their size, so this holds a few hundred responses
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static ResponseJournal instance;
+
+    private final File directory;
+    private final long maxBytes;
+    //File sizes by key, least recently used first. Loaded from the directory on first use.
+    private Map<String, Long> entries;
+    private long totalBytes;
+
+    ResponseJournal(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized ResponseJournal getInstance(Context context) {
+        if (instance == null) {
+            instance = new ResponseJournal(new File(context.getApplicationContext().getFilesDir(), DIRECTORY), DEFAULT_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * @return Key of the first page of the query's venues in the tile, see VenueRepository.tileFor
+     */
+    public static String key(String tile, ExploreQuery query) {
+        return tile + "_" + Uri.encode(query.toString());
+    }
+
+    /**
+     * Replaces the entry with the body, then evicts the least recently used entries while the journal is too big
+     * @param charset Charset the body is encoded in
+     */
+    public synchronized void put(String key, byte[] body, String charset) {
+        load();
+
+        File file = fileFor(key);
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = null;
+        DataOutputStream out = null;
+        try {
+            fileOut = new FileOutputStream(temp);
+            GZIPOutputStream gzip = new GZIPOutputStream(fileOut);
+            out = new DataOutputStream(new BufferedOutputStream(gzip));
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(charset);
+            out.writeInt(body.length);
+            out.write(body);
+            out.flush();
+            gzip.finish();
+            //The rename below is only atomic across a crash if the new file's bytes reached the disk first
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            Log.e("Error", "Could not journal response " + key, e);
+            closeQuietly(out != null ? out : fileOut);
+            temp.delete();
+            return;
+        }
+        closeQuietly(out);
+
+        //Readers see the old entry or the new one, never a partial write
+        if (!temp.renameTo(file)) {
+            Log.e("Error", "Could not replace journaled response " + key);
+            temp.delete();
+            return;
+        }
+
+        Long old = entries.remove(key);
+        if (old != null) {
+            totalBytes -= old;
+        }
+        entries.put(key, file.length());
+        totalBytes += file.length();
+        trim();
+    }
+
+    /**
+     * Marks the entry as just used, e.g. when Foursquare answered that it is unchanged
+     */
+    public synchronized void touch(String key) {
+        load();
+        if (entries.containsKey(key)) {
+            //An access moves the entry to the most recently used end
+            entries.get(key);
+            fileFor(key).setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Parses the venues out of the entry
+     * @return The venues with every field the parser reads, or null if there is no entry or it can't be read
+     */
+    public VenueColumns read(String key) {
+        byte[] body;
+        String charset;
+        synchronized (this) {
+            load();
+            //Also moves the entry to the most recently used end
+            if (entries.get(key) == null) {
+                return null;
+            }
+            File file = fileFor(key);
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+                if (in.readInt() != VERSION) {
+                    remove(key);
+                    return null;
+                }
+                in.readLong();
+                charset = in.readUTF();
+                body = new byte[in.readInt()];
+                in.readFully(body);
+            } catch (IOException e) {
+                Log.e("Error", "Could not read journaled response " + key, e);
+                remove(key);
+                return null;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            //Recency is kept on disk so it survives the process
+            file.setLastModified(System.currentTimeMillis());
+        }
+
+        //Parsed outside the lock, so other readers aren't held up by it
+        JsonReader reader = null;
+        try {
+            reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(body), charset));
+            return ExploreRequest.parseExplore(reader);
+        } catch (IOException e) {
+            Log.e("Error", "Could not parse journaled response " + key, e);
+            return null;
+        } catch (IllegalStateException e) {
+            Log.e("Error", "Could not parse journaled response " + key, e);
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Key of every entry, least recently used first
+     */
+    public synchronized List<String> keys() {
+        load();
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * @return Size of every entry on disk in bytes
+     */
+    public synchronized long size() {
+        load();
+        return totalBytes;
+    }
+
+    private static void closeQuietly(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+        private File fileFor(String key) {
+        return new File(directory, key);
+    }
+
+    private void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        fileFor(key).delete();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            totalBytes -= entry.getValue();
+            fileFor(entry.getKey()).delete();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Reads the entries in the directory in order of when they were last used
+     */
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e("Error", "Could not create response journal " + directory);
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            //Left over from a write that didn't finish
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            entries.put(file.getName(), file.length());
+            totalBytes += file.length();
+        }
+        trim();
+    }
+}
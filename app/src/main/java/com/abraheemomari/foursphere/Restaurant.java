@@ -1,6 +1,7 @@
 package com.abraheemomari.foursphere;
 
 public class Restaurant implements Comparable<Restaurant> {
+    private String id;
     private String name;
     private double latitude;
     private double longitude;
@@ -10,7 +11,8 @@ public class Restaurant implements Comparable<Restaurant> {
     private String isOpen;
     private String photoURL;
 
-    public Restaurant(String name, double latitude, double longitude, String category, String isOpen, String photoURL) {
+    public Restaurant(String id, String name, double latitude, double longitude, String category, String isOpen, String photoURL) {
+        this.id = id;
         this.name = name;
         this.latitude = latitude;
         this.longitude = longitude;
@@ -34,6 +36,10 @@ public class Restaurant implements Comparable<Restaurant> {
         this.photoURL = photoURL;
     }
 
+    public String getId() {
+        return id;
+    }
+
     public String getName() {
         return name;
     }
@@ -69,6 +75,6 @@ public class Restaurant implements Comparable<Restaurant> {
 
     @Override
     public int compareTo(Restaurant other) {
-        return ((Double) this.getDistance()).compareTo(other.getDistance());
+        return Double.compare(distance, other.distance);
     }
 }
\ No newline at end of file
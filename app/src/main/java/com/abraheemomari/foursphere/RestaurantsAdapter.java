@@ -3,7 +3,8 @@ package com.abraheemomari.foursphere;
 import android.content.Context;
 import android.graphics.Color;
 import android.location.Location;
-import android.location.LocationManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -14,8 +15,14 @@ import com.android.volley.toolbox.ImageLoader;
 import com.android.volley.toolbox.NetworkImageView;
 import com.abraheemomari.foursphere.R;
 
-import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Binds the restaurant data to views which can be retrieved by the RecyclerView
@@ -48,45 +55,234 @@ public class RestaurantsAdapter extends
         }
     }
 
+    private static final double METERS_PER_MILE = 1609;
+
     private Context context;
-    private ArrayList<Restaurant> restaurants;
-    private LocationManager locationManager;
-    private Location lastKnownLocation;
     private restaurantAdapterListener listener;
+    private PhotoPrefetcher photoPrefetcher;
+
+    //Ranking and diffing happen here so refreshes never sort or compare lists on the main thread
+    private static final ExecutorService diffExecutor = Executors.newSingleThreadExecutor();
+    //Only used from diffExecutor, its arrays are reused between updates
+    private final VenueRanker ranker = new VenueRanker();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    //Incremented for every update so results computed against an outdated list are dropped
+    private int updateGeneration;
+
+    //Restaurants shown, ranked in the background with each update. Rows are bound through one flyweight view.
+    private VenueColumns restaurants = new VenueColumns();
+    private VenueColumns.View row = restaurants.view();
+    //Built with each update, answers filters without comparing strings
+    private VenueFilterIndex filterIndex = new VenueFilterIndex(restaurants);
+    private final Set<String> selectedCategories = new HashSet<>();
+    private boolean openOnly;
+    //While a filter is set, rows map to these positions in restaurants. Both are reused between toggles.
+    private final BitSet selection = new BitSet();
+    private int[] visiblePositions = new int[0];
+    private int visibleCount;
+
+
+    public RestaurantsAdapter(Context context, restaurantAdapterListener listener) {
+        this.context = context;
+        this.listener = listener;
+    }
 
+    /**
+     * Rows bound while their photo is still being prefetched join the prefetch instead of downloading it again
+     */
+    public void setPhotoPrefetcher(PhotoPrefetcher photoPrefetcher) {
+        this.photoPrefetcher = photoPrefetcher;
+    }
 
-    public RestaurantsAdapter(Context context, ArrayList<Restaurant> restaurants, restaurantAdapterListener listener, Location lastKnownLocation) {
+    /**
+     * Shows a new snapshot of restaurants. Distances, sorting and the difference with the current list
+     * are computed on a background thread, then only the rows that changed are notified.
+     * @param snapshot Restaurants to show, copied so the caller can keep changing its list
+     * @param lastKnownLocation The user's location used to compute distances
+     */
+    public void update(VenueColumns snapshot, Location lastKnownLocation)
+    {
+        final VenueColumns oldRestaurants = restaurants;
+        final VenueColumns newRestaurants = snapshot.copy();
+        final double userLatitude = lastKnownLocation.getLatitude();
+        final double userLongitude = lastKnownLocation.getLongitude();
+        final int generation = ++updateGeneration;
+
+        diffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long trace = Metrics.start(Metrics.STAGE_RANK_VENUES);
+                final VenueColumns ranked = rank(newRestaurants, userLatitude, userLongitude);
+                Metrics.end(Metrics.STAGE_RANK_VENUES, trace);
+
+                trace = Metrics.start(Metrics.STAGE_DIFF_VENUES);
+                final VenueListDiff diff = VenueListDiff.calculate(oldRestaurants, ranked);
+                Metrics.end(Metrics.STAGE_DIFF_VENUES, trace);
+
+                final VenueFilterIndex index = new VenueFilterIndex(ranked);
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != updateGeneration) {
+                            return;
+                        }
+                        show(ranked, index, diff);
+                    }
+                });
+            }
+        });
+    }
 
-        this.context = context;
-        this.restaurants = restaurants;
-        this.listener = listener;
-        this.lastKnownLocation = lastKnownLocation;
+    /**
+     * Shows restaurants in the order given, such as search results ranked by relevance.
+     * Only the difference with the current list is computed in the background.
+     * @param ordered Restaurants with their distances already set, which neither the adapter nor the caller may modify
+     */
+    public void updateInOrder(final VenueColumns ordered)
+    {
+        final VenueColumns oldRestaurants = restaurants;
+        final int generation = ++updateGeneration;
 
+        diffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long trace = Metrics.start(Metrics.STAGE_DIFF_VENUES);
+                final VenueListDiff diff = VenueListDiff.calculate(oldRestaurants, ordered);
+                Metrics.end(Metrics.STAGE_DIFF_VENUES, trace);
+
+                final VenueFilterIndex index = new VenueFilterIndex(ordered);
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != updateGeneration) {
+                            return;
+                        }
+                        show(ordered, index, diff);
+                    }
+                });
+            }
+        });
+    }
 
-        //Get distance of each restaurant from the user in meters and convert it to miles
-        for (Restaurant restaurant : restaurants)
-        {
-            Location loc1 = new Location("");
+    private void show(VenueColumns newRestaurants, VenueFilterIndex index, VenueListDiff diff)
+    {
+        restaurants = newRestaurants;
+        row = restaurants.view();
+        filterIndex = index;
+        if (isFiltered()) {
+            //The diff is between unfiltered lists, so its positions don't match the rows shown
+            selectVisible();
+            notifyDataSetChanged();
+        } else {
+            diff.dispatchUpdatesTo(updateCallback);
+        }
+    }
+
+    /**
+     * Only shows the restaurants in any of the categories, and only open ones if openOnly is set
+     * @param categories Categories to show, none shows every category
+     */
+    public void setFilter(Collection<String> categories, boolean openOnly)
+    {
+        selectedCategories.clear();
+        selectedCategories.addAll(categories);
+        this.openOnly = openOnly;
+        if (isFiltered()) {
+            selectVisible();
+        }
+        notifyDataSetChanged();
+    }
 
-            loc1.setLatitude(lastKnownLocation.getLatitude());
-            loc1.setLongitude(lastKnownLocation.getLongitude());
+    public boolean isFiltered()
+    {
+        return openOnly || !selectedCategories.isEmpty();
+    }
 
-            Location loc2 = new Location("");
-            loc2.setLatitude(restaurant.getLatitude());
-            loc2.setLongitude(restaurant.getLongitude());
+    public Set<String> getSelectedCategories()
+    {
+        return Collections.unmodifiableSet(selectedCategories);
+    }
 
-            float distanceInMeters = loc1.distanceTo(loc2);
-            float miles = distanceInMeters / 1609;
-            restaurant.setDistance((double) miles);
+    public boolean isOpenOnly()
+    {
+        return openOnly;
+    }
 
+    /**
+     * @return Index of the restaurants being shown before filtering, for facet counts
+     */
+    public VenueFilterIndex getFilterIndex()
+    {
+        return filterIndex;
+    }
+
+    private void selectVisible()
+    {
+        visibleCount = filterIndex.select(selectedCategories, openOnly, selection);
+        if (visiblePositions.length < visibleCount) {
+            visiblePositions = new int[Math.max(visibleCount, visiblePositions.length * 2)];
+        }
+        int row = 0;
+        for (int position = selection.nextSetBit(0); position >= 0; position = selection.nextSetBit(position + 1)) {
+            visiblePositions[row++] = position;
         }
+    }
+
+    /**
+     * @return Index in restaurants of the restaurant shown at the adapter position
+     */
+    private int indexAt(int position)
+    {
+        return isFiltered() ? visiblePositions[position] : position;
+    }
 
-        //Sort be distance (nearest first)
-        Collections.sort(restaurants);
+    /**
+     * @return The restaurants with their distance from the user in miles, nearest first
+     */
+    private VenueColumns rank(VenueColumns snapshot, double userLatitude, double userLongitude)
+    {
+        ranker.reset(snapshot.size());
+        for (int i = 0; i < snapshot.size(); ++i)
+        {
+            ranker.setVenue(i, snapshot.getLatitude(i), snapshot.getLongitude(i));
+        }
 
+        //The list only covers a few miles around the user, so the fast approximation ranks it just as well
+        ranker.rank(userLatitude, userLongitude, true);
 
+        VenueColumns ranked = new VenueColumns(snapshot.size());
+        for (int rank = 0; rank < ranker.size(); ++rank)
+        {
+            int index = ranker.venueAt(rank);
+            ranked.setDistance(ranked.add(snapshot, index), (float) (ranker.distanceOf(index) / METERS_PER_MILE));
+        }
+        return ranked;
     }
 
+    private final VenueListDiff.updateCallback updateCallback = new VenueListDiff.updateCallback() {
+        @Override
+        public void onInserted(int position) {
+            notifyItemInserted(position);
+        }
+
+        @Override
+        public void onRemoved(int position) {
+            notifyItemRemoved(position);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            notifyItemMoved(fromPosition, toPosition);
+        }
+
+        @Override
+        public void onChanged(int position, Object payload) {
+            notifyItemChanged(position, payload);
+        }
+    };
+
 
     @Override
     public RestaurantsAdapter.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
@@ -100,39 +296,64 @@ public class RestaurantsAdapter extends
         return viewHolder;
     }
 
+    @Override
+    public void onBindViewHolder(RestaurantsAdapter.ViewHolder viewHolder, int position, List<Object> payloads) {
+        //A distance-only change rebinds the distance text and leaves the photo alone
+        if (!payloads.isEmpty() && allDistancePayloads(payloads)) {
+            bindDistance(viewHolder, row.moveTo(indexAt(position)));
+            return;
+        }
+        onBindViewHolder(viewHolder, position);
+    }
+
+    private static boolean allDistancePayloads(List<Object> payloads) {
+        for (Object payload : payloads) {
+            if (payload != VenueListDiff.PAYLOAD_DISTANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public void onBindViewHolder(RestaurantsAdapter.ViewHolder viewHolder, final int position) {
-        final Restaurant restaurant = restaurants.get(position);
+        final VenueColumns bound = restaurants;
+        final int index = indexAt(position);
+        VenueColumns.View venue = row.moveTo(index);
 
         viewHolder.itemView.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                listener.restaurantSelected(restaurant);
+                //Only the selected venue becomes an object
+                listener.restaurantSelected(bound.toRestaurant(index));
             }
         });
 
-        //Retrieve image from photo's url
-        ImageLoader imageLoader = VolleySingleton.getInstance(context).getImageLoader();
+        //Retrieve image from photo's url, joining its prefetch if one is still pending
+        String photoURL = venue.getPhotoURL();
+        ImageLoader imageLoader = photoPrefetcher != null ? photoPrefetcher.adopt(photoURL) : null;
+        if (imageLoader == null) {
+            imageLoader = VolleySingleton.getInstance(context).getImageLoader();
+        }
         NetworkImageView imageView = viewHolder.imageView;
-        imageView.setImageUrl(restaurant.getPhotoURL(), imageLoader);
+        imageView.setImageUrl(photoURL, imageLoader);
 
         TextView textView = viewHolder.nameTextView;
-        textView.setText(restaurant.getName());
+        textView.setText(venue.getName());
 
-        textView = viewHolder.distanceTextView;
-        textView.setText(String.valueOf((double)Math.round((restaurant.getDistance()) * 10d) / 10d) + " miles away");
+        bindDistance(viewHolder, venue);
 
         textView = viewHolder.categoryTextView;
-        textView.setText(restaurant.getCategory());
+        textView.setText(venue.getCategory());
 
         textView = viewHolder.isOpenTextView;
-        textView.setText(restaurant.isOpen());
+        textView.setText(venue.isOpen());
 
-        if (restaurant.isOpen().equals("OPEN")) {
+        if (venue.getOpenState() == VenueColumns.OPEN) {
             //Set color to green
             textView.setTextColor(Color.parseColor("#00CC00"));
         }
-        else if (restaurant.isOpen().equals("CLOSED"))
+        else if (venue.getOpenState() == VenueColumns.CLOSED)
         {
             //Set color to red
             textView.setTextColor(Color.parseColor("#E50000"));
@@ -140,12 +361,29 @@ public class RestaurantsAdapter extends
 
     }
 
+    @Override
+    public void onViewRecycled(RestaurantsAdapter.ViewHolder viewHolder) {
+        //The row scrolled off screen, so cancel its photo request unless another row is waiting on the same photo
+        viewHolder.imageView.setImageUrl(null, VolleySingleton.getInstance(context).getImageLoader());
+    }
+
+    private static void bindDistance(RestaurantsAdapter.ViewHolder viewHolder, VenueColumns.View venue) {
+        viewHolder.distanceTextView.setText(String.valueOf((double)Math.round((venue.getDistance()) * 10d) / 10d) + " miles away");
+    }
+
+    /**
+     * @return URL of the photo shown in the row at the position, or an empty string if it has none
+     */
+    public String getPhotoURL(int position) {
+        return restaurants.getPhotoURL(indexAt(position));
+    }
+
     /**
-     * @return Number of restaurants
+     * @return Number of restaurants shown after filtering
      */
     @Override
     public int getItemCount() {
-        return restaurants.size();
+        return isFiltered() ? visibleCount : restaurants.size();
     }
 
 
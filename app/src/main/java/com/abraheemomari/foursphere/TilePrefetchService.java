@@ -0,0 +1,76 @@
+package com.abraheemomari.foursphere;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Periodic job that runs a TilePrefetcher while the device is charging on an unmetered network.
+ * Only available from API 21, on older devices venues are only fetched while the app is open.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class TilePrefetchService extends JobService {
+
+    private static final int JOB_ID = 1;
+
+    private static final long PERIOD_MS = 12 * 60 * 60 * 1000;
+
+    private TilePrefetcher prefetcher;
+
+    /**
+     * Schedules the job unless it already is, so it's safe to call on every launch
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        //Scheduling again would restart the period
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, TilePrefetchService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setPeriodic(PERIOD_MS)
+                .setPersisted(true)
+                .build();
+        if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.e("Error", "Could not schedule tile prefetching");
+        }
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        //Jobs are started on the main thread, and the prefetcher blocks on every request
+        final TilePrefetcher run = new TilePrefetcher(this, TilePrefetcher.DEFAULT_BYTE_BUDGET);
+        prefetcher = run;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                run.run();
+                jobFinished(params, false);
+            }
+        }, "TilePrefetcher").start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        //The device was unplugged or left the unmetered network, try again at the next period
+        if (prefetcher != null) {
+            prefetcher.stop();
+        }
+        return false;
+    }
+}
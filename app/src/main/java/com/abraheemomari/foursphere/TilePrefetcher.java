@@ -0,0 +1,202 @@
+package com.abraheemomari.foursphere;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.toolbox.ImageRequest;
+import com.android.volley.toolbox.RequestFuture;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Refreshes the venues and thumbnails of the tiles the user looks for venues in most often,
+ * so opening the app in one of them is served from a warm cache even without a connection.
+ * A run is a single blocking batch on the prefetch lane that stops once its byte budget is spent.
+ *
+ * Runs on a background thread, see TilePrefetchService.
+ */
+public class TilePrefetcher {
+
+    public static final long DEFAULT_BYTE_BUDGET = 2 * 1024 * 1024;
+
+    //Tiles refreshed per run, most visited first
+    private static final int MAX_TILES = 5;
+
+    //Only tiles visited this recently count as frequent
+    private static final long VISIT_WINDOW_MS = 30L * 24 * 60 * 60 * 1000;
+
+    //Tiles fetched more recently than this are left alone
+    private static final long REFRESH_AFTER_MS = 6 * 60 * 60 * 1000;
+
+    private static final long REQUEST_TIMEOUT_MS = 30 * 1000;
+
+    //Only the encoded photo in the disk cache matters here, so decode it as small as possible
+    private static final int THUMBNAIL_DECODE_PX = 8;
+
+    private final Context context;
+    private final long byteBudget;
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile boolean stopped;
+
+    public TilePrefetcher(Context context, long byteBudget) {
+        this.context = context.getApplicationContext();
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * Stops the run before its next request
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return Response bytes received so far in this run
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    private boolean canContinue() {
+        return !stopped && bytes.get() < byteBudget;
+    }
+
+    /**
+     * Blocks until every frequent tile is refreshed, the budget is spent or stop is called
+     * @return Number of tiles refreshed
+     */
+    public int run() {
+        Database database = Database.getInstance(context);
+        List<Database.TileVisit> tiles = database.getFrequentTiles(System.currentTimeMillis() - VISIT_WINDOW_MS, MAX_TILES);
+
+        int refreshed = 0;
+        for (Database.TileVisit tile : tiles) {
+            if (!canContinue()) {
+                break;
+            }
+            if (System.currentTimeMillis() - database.getTileFetchedAt(tile.tileId) < REFRESH_AFTER_MS) {
+                continue;
+            }
+
+            VenueColumns venues = fetchVenues(tile);
+            if (venues == null) {
+                continue;
+            }
+            //Queued on the database's write executor in this order, so the tile is only marked once its venues are stored
+            database.upsertVenues(venues, null);
+            database.markTileFetched(tile.tileId, System.currentTimeMillis());
+            ++refreshed;
+
+            fetchThumbnails(venues);
+        }
+
+        Log.d("TilePrefetcher", "Refreshed " + refreshed + " of " + tiles.size() + " tiles with " + bytes.get() + " bytes");
+        return refreshed;
+    }
+
+    /**
+     * @return Venues of every query the list shows, or null if none of them could be fetched
+     */
+    private VenueColumns fetchVenues(Database.TileVisit tile) {
+        VenueColumns venues = null;
+        for (ExploreQuery query : VenueRepository.getInstance(context).getQueries()) {
+            if (!canContinue()) {
+                break;
+            }
+            VenueColumns response = fetchVenues(tile, query);
+            if (response != null) {
+                if (venues == null) {
+                    venues = new VenueColumns();
+                }
+                for (int i = 0; i < response.size(); ++i) {
+                    venues.add(response, i);
+                }
+            }
+        }
+        return venues;
+    }
+
+    private VenueColumns fetchVenues(Database.TileVisit tile, ExploreQuery query) {
+        RequestFuture<VenueColumns> future = RequestFuture.newFuture();
+        ExploreRequest request = new ExploreRequest(
+                VenueRepository.exploreUrl(tile.latitude, tile.longitude, query, 0, VenueRepository.PAGE_SIZE), future, future) {
+            @Override
+            protected Response<VenueColumns> parseNetworkResponse(NetworkResponse response) {
+                countBytes(response);
+                return super.parseNetworkResponse(response);
+            }
+        };
+        //The prefetch lane's disk cache keeps entries for weeks, which would leave the next run reading stale venues
+        request.setShouldCache(false);
+        request.setJournal(ResponseJournal.getInstance(context), ResponseJournal.key(tile.tileId, query));
+        return await(request, future);
+    }
+
+    /**
+     * Loads the venues' photos into the image disk cache, skipping the ones it already holds
+     */
+    private void fetchThumbnails(VenueColumns venues) {
+        RequestQueue queue = VolleySingleton.getInstance(context).getRequestQueue(VolleySingleton.LANE_PREFETCH_IMAGE);
+        for (int i = 0; i < venues.size(); ++i) {
+            if (!canContinue()) {
+                return;
+            }
+            String url = venues.getPhotoURL(i);
+            if (TextUtils.isEmpty(url) || queue.getCache().get(url) != null) {
+                continue;
+            }
+
+            RequestFuture<Bitmap> future = RequestFuture.newFuture();
+            ImageRequest request = new ImageRequest(url, future, THUMBNAIL_DECODE_PX, THUMBNAIL_DECODE_PX,
+                    Bitmap.Config.RGB_565, future) {
+                @Override
+                protected Response<Bitmap> parseNetworkResponse(NetworkResponse response) {
+                    countBytes(response);
+                    return super.parseNetworkResponse(response);
+                }
+            };
+            await(request, future);
+        }
+    }
+
+    private void countBytes(NetworkResponse response) {
+        //A 304 is answered from the cached body, so nothing was downloaded
+        if (!response.notModified && response.data != null) {
+            bytes.addAndGet(response.data.length);
+        }
+    }
+
+    /**
+     * Adds the request to the prefetch lane and waits for its response
+     * @return The response, or null if the request failed or timed out
+     */
+    private <T> T await(Request<T> request, RequestFuture<T> future) {
+        future.setRequest(request);
+        VolleySingleton.getInstance(context).getRequestQueue(VolleySingleton.LANE_PREFETCH_IMAGE).add(request);
+        try {
+            return future.get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            request.cancel();
+            stopped = true;
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e("Error", "Prefetch request failed: " + request.getUrl());
+            return null;
+        } catch (TimeoutException e) {
+            request.cancel();
+            Log.e("Error", "Prefetch request timed out: " + request.getUrl());
+            return null;
+        }
+    }
+}
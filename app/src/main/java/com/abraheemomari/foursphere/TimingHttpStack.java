@@ -0,0 +1,335 @@
+package com.abraheemomari.foursphere;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.toolbox.HttpStack;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * HttpStack for Volley built on HttpURLConnection that keeps connections alive in a pool,
+ * asks for gzip bodies and inflates them itself, and measures each phase of every request.
+ * Conditional revalidation headers from Volley's cache are passed through, so an unchanged
+ * response costs a 304 with an empty body.
+ *
+ * Only depends on java.net, so it can be pointed at a local mock server outside of Android.
+ */
+public class TimingHttpStack implements HttpStack {
+
+    public interface timingListener {
+        /**
+         * Called on the network thread once a request's body has been read
+         */
+        public void requestTimed(Request<?> request, RequestTiming timing);
+    }
+
+    /**
+     * Time spent in each phase of a request, in milliseconds
+     */
+    public static class RequestTiming {
+        public final String url;
+        public final int statusCode;
+        //Close to zero when the resolver cached the host
+        public final long dnsMs;
+        //Close to zero when a pooled connection is reused
+        public final long connectMs;
+        public final long timeToFirstByteMs;
+        public final long bodyMs;
+        //Bytes received on the wire, before inflating
+        public final long transferredBytes;
+        public final long bodyBytes;
+
+        public RequestTiming(String url, int statusCode, long dnsMs, long connectMs, long timeToFirstByteMs,
+                             long bodyMs, long transferredBytes, long bodyBytes) {
+            this.url = url;
+            this.statusCode = statusCode;
+            this.dnsMs = dnsMs;
+            this.connectMs = connectMs;
+            this.timeToFirstByteMs = timeToFirstByteMs;
+            this.bodyMs = bodyMs;
+            this.transferredBytes = transferredBytes;
+            this.bodyBytes = bodyBytes;
+        }
+
+        @Override
+        public String toString() {
+            return statusCode + " " + url + " dns=" + dnsMs + "ms connect=" + connectMs + "ms ttfb=" + timeToFirstByteMs
+                    + "ms body=" + bodyMs + "ms " + transferredBytes + "/" + bodyBytes + " bytes";
+        }
+    }
+
+    //Idle connections kept alive per host
+    private static final int MAX_POOLED_CONNECTIONS = 8;
+
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_HOST = "Host";
+
+    static {
+        //HttpURLConnection pools connections system wide, these make the policy explicit
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_POOLED_CONNECTIONS));
+    }
+
+    private volatile timingListener listener;
+    //Number of requests currently being sent or read for each URL
+    private final Map<String, Integer> onTheWire = new HashMap<>();
+
+    public void setTimingListener(timingListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return true if a request for the URL has left its queue and is on the network, rather than waiting for a thread
+     */
+    public boolean isOnTheWire(String url) {
+        synchronized (onTheWire) {
+            return onTheWire.containsKey(url);
+        }
+    }
+
+    @Override
+    public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        String url = request.getUrl();
+        synchronized (onTheWire) {
+            Integer count = onTheWire.get(url);
+            onTheWire.put(url, count == null ? 1 : count + 1);
+        }
+        try {
+            return perform(request, additionalHeaders);
+        } finally {
+            synchronized (onTheWire) {
+                int count = onTheWire.get(url);
+                if (count == 1) {
+                    onTheWire.remove(url);
+                } else {
+                    onTheWire.put(url, count - 1);
+                }
+            }
+        }
+    }
+
+    private HttpResponse perform(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        URL url = new URL(request.getUrl());
+
+        Map<String, String> headers = new HashMap<>();
+        headers.putAll(request.getHeaders());
+        //Holds If-None-Match and If-Modified-Since when Volley revalidates a cached response
+        headers.putAll(additionalHeaders);
+        //Setting this ourselves turns off HttpURLConnection's transparent gzip, so we inflate below
+        headers.put("Accept-Encoding", "gzip");
+
+        long start = System.nanoTime();
+        InetAddress address = InetAddress.getByName(url.getHost());
+        long resolved = System.nanoTime();
+
+        /*Plain HTTP connects to the address just resolved, so the connection never looks the host up again.
+          HTTPS has to connect by name for SNI and certificate checks, the lookup above leaves it in the resolver's cache.
+        */
+        URL target = url;
+        if ("http".equalsIgnoreCase(url.getProtocol())) {
+            target = new URL(url.getProtocol(), address.getHostAddress(), url.getPort(), url.getFile());
+            headers.put(HEADER_HOST, url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort());
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+        connection.setConnectTimeout(request.getTimeoutMs());
+        connection.setReadTimeout(request.getTimeoutMs());
+        connection.setUseCaches(false);
+        connection.setDoInput(true);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.addRequestProperty(header.getKey(), header.getValue());
+        }
+        setMethodAndBody(connection, request);
+
+        //Returns straight away when a pooled connection is reused
+        connection.connect();
+        long connected = System.nanoTime();
+
+        int statusCode = connection.getResponseCode();
+        if (statusCode == -1) {
+            throw new IOException("Could not retrieve response code from HttpUrlConnection.");
+        }
+        long firstByte = System.nanoTime();
+
+        CountingInputStream wire = new CountingInputStream(responseStream(connection));
+        InputStream body = wire;
+        //A 304 or 204 keeps the Content-Encoding of the full response but has no gzip stream to inflate
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding()) && hasBody(statusCode)) {
+            body = gzipStream(wire);
+        }
+        byte[] data = readFully(body);
+        long done = System.nanoTime();
+
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(
+                new ProtocolVersion("HTTP", 1, 1), statusCode, connection.getResponseMessage()));
+        ByteArrayEntity entity = new ByteArrayEntity(data);
+        entity.setContentType(connection.getHeaderField(HEADER_CONTENT_TYPE));
+        response.setEntity(entity);
+
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            String name = header.getKey();
+            //The body was inflated, so its encoding and length headers no longer apply
+            if (name == null || name.equalsIgnoreCase(HEADER_CONTENT_ENCODING) || name.equalsIgnoreCase(HEADER_CONTENT_LENGTH)) {
+                continue;
+            }
+            response.addHeader(name, header.getValue().get(0));
+        }
+
+        timingListener timingListener = listener;
+        if (timingListener != null) {
+            timingListener.requestTimed(request, new RequestTiming(request.getUrl(), statusCode,
+                    millis(resolved - start), millis(connected - resolved), millis(firstByte - connected),
+                    millis(done - firstByte), wire.count, data.length));
+        }
+        return response;
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    private static boolean hasBody(int statusCode) {
+        return statusCode != HttpURLConnection.HTTP_NOT_MODIFIED && statusCode != HttpURLConnection.HTTP_NO_CONTENT
+                && (statusCode < 100 || statusCode >= 200);
+    }
+
+    /**
+     * Inflates the stream, unless it is empty, which GZIPInputStream would reject for lacking a header
+     */
+    private static InputStream gzipStream(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in);
+        int first = pushback.read();
+        if (first == -1) {
+            return pushback;
+        }
+        pushback.unread(first);
+        return new GZIPInputStream(pushback);
+    }
+
+    private static InputStream responseStream(HttpURLConnection connection) {
+        try {
+            return connection.getInputStream();
+        } catch (IOException e) {
+            //Error responses, including 304s on some versions, only have an error stream
+            InputStream error = connection.getErrorStream();
+            return error != null ? error : new ByteArrayInputStream(new byte[0]);
+        }
+    }
+
+    /**
+     * Reads and closes the stream, which hands the connection back to the pool
+     */
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void setMethodAndBody(HttpURLConnection connection, Request<?> request)
+            throws IOException, AuthFailureError {
+        byte[] body = null;
+        String contentType = null;
+
+        switch (request.getMethod()) {
+            case Request.Method.DEPRECATED_GET_OR_POST:
+                body = request.getPostBody();
+                if (body != null) {
+                    connection.setRequestMethod("POST");
+                    contentType = request.getPostBodyContentType();
+                } else {
+                    connection.setRequestMethod("GET");
+                }
+                break;
+            case Request.Method.GET:
+                connection.setRequestMethod("GET");
+                break;
+            case Request.Method.DELETE:
+                connection.setRequestMethod("DELETE");
+                break;
+            case Request.Method.POST:
+                connection.setRequestMethod("POST");
+                body = request.getBody();
+                contentType = request.getBodyContentType();
+                break;
+            case Request.Method.PUT:
+                connection.setRequestMethod("PUT");
+                body = request.getBody();
+                contentType = request.getBodyContentType();
+                break;
+            default:
+                throw new IllegalStateException("Unsupported request method: " + request.getMethod());
+        }
+
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.addRequestProperty(HEADER_CONTENT_TYPE, contentType);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read from the wire so compressed and inflated sizes can be compared
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                ++count;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
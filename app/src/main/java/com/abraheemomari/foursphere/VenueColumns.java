@@ -0,0 +1,338 @@
+package com.abraheemomari.foursphere;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of venues stored column by column, which is how venue lists are held from the parser and the database
+ * to the adapter. Coordinates and distances are primitive arrays, categories are interned to int ids into a table
+ * shared by the list, and the open state is a byte, so ranking and filters such as VenueFilterIndex scan primitive
+ * arrays instead of visiting an object per venue.
+ *
+ * Read venues through a View, a flyweight that can be moved between rows without allocating.
+ * Not thread safe. Fill it on one thread, then hand it to others only once it is no longer written,
+ * and copy it first if the owner keeps changing it.
+ */
+public class VenueColumns {
+
+    public static final byte OPEN_UNKNOWN = 0;
+    public static final byte OPEN = 1;
+    public static final byte CLOSED = 2;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int count;
+    private double[] latitudes;
+    private double[] longitudes;
+    //In miles, like Restaurant's distance
+    private float[] distances;
+    private int[] categoryIds;
+    private byte[] openStates;
+    private String[] ids;
+    private String[] names;
+    private String[] photoURLs;
+
+    private final Map<String, Integer> categoryIdsByName = new HashMap<>();
+    private final List<String> categories = new ArrayList<>();
+
+    public VenueColumns() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public VenueColumns(int capacity) {
+        capacity = Math.max(capacity, 1);
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        distances = new float[capacity];
+        categoryIds = new int[capacity];
+        openStates = new byte[capacity];
+        ids = new String[capacity];
+        names = new String[capacity];
+        photoURLs = new String[capacity];
+    }
+
+    /**
+     * @return Copy of the venues that later changes to either list don't affect
+     */
+    public VenueColumns copy() {
+        VenueColumns copy = new VenueColumns(count);
+        System.arraycopy(latitudes, 0, copy.latitudes, 0, count);
+        System.arraycopy(longitudes, 0, copy.longitudes, 0, count);
+        System.arraycopy(distances, 0, copy.distances, 0, count);
+        System.arraycopy(categoryIds, 0, copy.categoryIds, 0, count);
+        System.arraycopy(openStates, 0, copy.openStates, 0, count);
+        System.arraycopy(ids, 0, copy.ids, 0, count);
+        System.arraycopy(names, 0, copy.names, 0, count);
+        System.arraycopy(photoURLs, 0, copy.photoURLs, 0, count);
+        copy.categoryIdsByName.putAll(categoryIdsByName);
+        copy.categories.addAll(categories);
+        copy.count = count;
+        return copy;
+    }
+
+    /**
+     * Appends a venue at distance 0, growing the columns if they are full
+     * @param openState One of OPEN_UNKNOWN, OPEN and CLOSED
+     * @return Index of the venue
+     */
+    public int add(String id, String name, double latitude, double longitude, String category, byte openState, String photoURL) {
+        if (count == latitudes.length) {
+            grow(count * 2);
+        }
+        int index = count++;
+        ids[index] = id;
+        names[index] = name;
+        latitudes[index] = latitude;
+        longitudes[index] = longitude;
+        distances[index] = 0;
+        categoryIds[index] = intern(category);
+        openStates[index] = openState;
+        photoURLs[index] = photoURL;
+        return index;
+    }
+
+    /**
+     * Appends a copy of a venue of another list, with its distance
+     * @return Index of the venue in this list
+     */
+    public int add(VenueColumns other, int otherIndex) {
+        int index = add(other.ids[otherIndex], other.names[otherIndex], other.latitudes[otherIndex],
+                other.longitudes[otherIndex], other.getCategory(otherIndex), other.openStates[otherIndex],
+                other.photoURLs[otherIndex]);
+        distances[index] = other.distances[otherIndex];
+        return index;
+    }
+
+    /**
+     * Replaces a venue with a copy of a venue of another list, with its distance
+     */
+    public void set(int index, VenueColumns other, int otherIndex) {
+        ids[index] = other.ids[otherIndex];
+        names[index] = other.names[otherIndex];
+        latitudes[index] = other.latitudes[otherIndex];
+        longitudes[index] = other.longitudes[otherIndex];
+        distances[index] = other.distances[otherIndex];
+        categoryIds[index] = intern(other.getCategory(otherIndex));
+        openStates[index] = other.openStates[otherIndex];
+        photoURLs[index] = other.photoURLs[otherIndex];
+    }
+
+    /**
+     * @param miles Distance from the user
+     */
+    public void setDistance(int index, float miles) {
+        distances[index] = miles;
+    }
+
+    /**
+     * @return true if every displayed field but the distance matches the venue of the other list
+     */
+    public boolean hasSameContent(int index, VenueColumns other, int otherIndex) {
+        return latitudes[index] == other.latitudes[otherIndex] && longitudes[index] == other.longitudes[otherIndex]
+                && openStates[index] == other.openStates[otherIndex]
+                && equals(names[index], other.names[otherIndex])
+                && getCategory(index).equals(other.getCategory(otherIndex))
+                && equals(photoURLs[index], other.photoURLs[otherIndex]);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void grow(int capacity) {
+        latitudes = Arrays.copyOf(latitudes, capacity);
+        longitudes = Arrays.copyOf(longitudes, capacity);
+        distances = Arrays.copyOf(distances, capacity);
+        categoryIds = Arrays.copyOf(categoryIds, capacity);
+        openStates = Arrays.copyOf(openStates, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        names = Arrays.copyOf(names, capacity);
+        photoURLs = Arrays.copyOf(photoURLs, capacity);
+    }
+
+    private int intern(String category) {
+        if (category == null) {
+            category = "";
+        }
+        Integer id = categoryIdsByName.get(category);
+        if (id == null) {
+            id = categories.size();
+            categoryIdsByName.put(category, id);
+            categories.add(category);
+        }
+        return id;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return Number of distinct categories, whose ids run from 0 to this count
+     */
+    public int getCategoryCount() {
+        return categories.size();
+    }
+
+    public String getCategoryName(int categoryId) {
+        return categories.get(categoryId);
+    }
+
+    /**
+     * @return Id of the category, or -1 if no venue added has had it
+     */
+    public int findCategoryId(String category) {
+        Integer id = categoryIdsByName.get(category);
+        return id != null ? id : -1;
+    }
+
+    public String getId(int index) {
+        return ids[index];
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public double getLatitude(int index) {
+        return latitudes[index];
+    }
+
+    public double getLongitude(int index) {
+        return longitudes[index];
+    }
+
+    public float getDistance(int index) {
+        return distances[index];
+    }
+
+    public int getCategoryId(int index) {
+        return categoryIds[index];
+    }
+
+    public String getCategory(int index) {
+        return categories.get(categoryIds[index]);
+    }
+
+    public byte getOpenState(int index) {
+        return openStates[index];
+    }
+
+    /**
+     * @return "OPEN", "CLOSED" or "", as Restaurant.isOpen
+     */
+    public String isOpen(int index) {
+        return openStateName(openStates[index]);
+    }
+
+    public String getPhotoURL(int index) {
+        return photoURLs[index];
+    }
+
+    /**
+     * @return Copy of the venue as a Restaurant, for handing a single venue on, such as the one selected
+     */
+    public Restaurant toRestaurant(int index) {
+        Restaurant restaurant = new Restaurant(ids[index], names[index], latitudes[index], longitudes[index],
+                getCategory(index), isOpen(index), photoURLs[index]);
+        restaurant.setDistance(distances[index]);
+        return restaurant;
+    }
+
+    /**
+     * @param isOpen Foursquare's "true" or "false", or the "OPEN" or "CLOSED" isOpen returns
+     */
+    static byte openStateOf(String isOpen) {
+        if ("true".equals(isOpen) || "OPEN".equals(isOpen)) {
+            return OPEN;
+        }
+        if ("false".equals(isOpen) || "CLOSED".equals(isOpen)) {
+            return CLOSED;
+        }
+        return OPEN_UNKNOWN;
+    }
+
+    static String openStateName(byte openState) {
+        switch (openState) {
+            case OPEN:
+                return "OPEN";
+            case CLOSED:
+                return "CLOSED";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * @return A view of the first venue, move it with moveTo
+     */
+    public View view() {
+        return new View();
+    }
+
+    /**
+     * Flyweight over one row of the columns. Moving it to another row doesn't allocate, so one view can bind every row.
+     */
+    public class View {
+        private int index;
+
+        /**
+         * @return This view, now reading the venue at the index
+         */
+        public View moveTo(int index) {
+            this.index = index;
+            return this;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getId() {
+            return ids[index];
+        }
+
+        public String getName() {
+            return names[index];
+        }
+
+        public double getLatitude() {
+            return latitudes[index];
+        }
+
+        public double getLongitude() {
+            return longitudes[index];
+        }
+
+        public float getDistance() {
+            return distances[index];
+        }
+
+        public int getCategoryId() {
+            return categoryIds[index];
+        }
+
+        public String getCategory() {
+            return categories.get(categoryIds[index]);
+        }
+
+        public byte getOpenState() {
+            return openStates[index];
+        }
+
+        public String isOpen() {
+            return openStateName(openStates[index]);
+        }
+
+        public String getPhotoURL() {
+            return photoURLs[index];
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.abraheemomari.foursphere;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * In-memory filter index over a list of venues. Categories keep the small ids VenueColumns interned them to, with one bitset each,
+ * and open venues have a bitset of their own, where bit i stands for the venue at position i of the list.
+ * Filters are answered with bitwise OR across the selected categories and AND with the open bitset,
+ * and facet counts are bitset cardinalities, so nothing is string-compared after the index is built.
+ *
+ * Not thread safe. Build it on any thread, then only use it from one.
+ */
+public class VenueFilterIndex {
+
+    private final int size;
+    private final VenueColumns venues;
+    private final BitSet[] categoryBits;
+    private final BitSet openBits;
+    //Reused by the counts so they don't allocate
+    private final BitSet scratch;
+
+    /**
+     * Indexes the venues by position. The columns must not change while the index is used.
+     */
+    public VenueFilterIndex(VenueColumns venues) {
+        this.venues = venues;
+        size = venues.size();
+        categoryBits = new BitSet[venues.getCategoryCount()];
+        for (int id = 0; id < categoryBits.length; ++id) {
+            categoryBits[id] = new BitSet(size);
+        }
+        openBits = new BitSet(size);
+        scratch = new BitSet(size);
+
+        for (int i = 0; i < size; ++i) {
+            categoryBits[venues.getCategoryId(i)].set(i);
+            if (venues.getOpenState(i) == VenueColumns.OPEN) {
+                openBits.set(i);
+            }
+        }
+    }
+
+    /**
+     * @return Number of venues indexed
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Number of distinct categories, whose ids run from 0 to this count
+     */
+    public int getCategoryCount() {
+        return categoryBits.length;
+    }
+
+    public String getCategory(int categoryId) {
+        return venues.getCategoryName(categoryId);
+    }
+
+    /**
+     * @return Id of the category, or -1 if no venue has it
+     */
+    public int getCategoryId(String category) {
+        return venues.findCategoryId(category);
+    }
+
+    /**
+     * @return Number of venues in the category, counting only open ones if openOnly is set
+     */
+    public int countCategory(int categoryId, boolean openOnly) {
+        BitSet bits = categoryBits[categoryId];
+        if (!openOnly) {
+            return bits.cardinality();
+        }
+        scratch.clear();
+        scratch.or(bits);
+        scratch.and(openBits);
+        return scratch.cardinality();
+    }
+
+    public int countOpen() {
+        return openBits.cardinality();
+    }
+
+    /**
+     * Selects the venues in any of the categories that are open if openOnly is set
+     * @param selectedCategories Categories to keep, none keeps every category. Unknown categories match nothing.
+     * @param result Cleared and set to the positions of the selected venues, so one bitset can be reused for every toggle
+     * @return Number of venues selected
+     */
+    public int select(Collection<String> selectedCategories, boolean openOnly, BitSet result) {
+        result.clear();
+        if (selectedCategories.isEmpty()) {
+            result.set(0, size);
+        } else {
+            for (String category : selectedCategories) {
+                int id = venues.findCategoryId(category);
+                if (id >= 0) {
+                    result.or(categoryBits[id]);
+                }
+            }
+        }
+        if (openOnly) {
+            result.and(openBits);
+        }
+        return result.cardinality();
+    }
+}
@@ -0,0 +1,141 @@
+package com.abraheemomari.foursphere;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes the removals, moves, insertions and changes that turn one list of venues into another,
+ * matching restaurants by venue id. Meant to be calculated off the main thread and then dispatched
+ * to an adapter as granular notifications.
+ */
+public class VenueListDiff {
+
+    public interface updateCallback {
+        public void onInserted(int position);
+
+        public void onRemoved(int position);
+
+        public void onMoved(int fromPosition, int toPosition);
+
+        /**
+         * @param payload PAYLOAD_DISTANCE if only the distance changed, null if the whole row changed
+         */
+        public void onChanged(int position, Object payload);
+    }
+
+    //Payload for rows where nothing but the distance from the user changed
+    public static final Object PAYLOAD_DISTANCE = new Object();
+
+    private static final int INSERT = 0;
+    private static final int REMOVE = 1;
+    private static final int MOVE = 2;
+    private static final int CHANGE = 3;
+    private static final int CHANGE_DISTANCE = 4;
+
+    //Each operation is a type followed by two positions
+    private final int[] operations;
+    private final int operationCount;
+
+    private VenueListDiff(int[] operations, int operationCount) {
+        this.operations = operations;
+        this.operationCount = operationCount;
+    }
+
+    /**
+     * @param oldList List currently shown, neither list may contain the same venue id twice
+     * @param newList List that will be shown
+     */
+    public static VenueListDiff calculate(VenueColumns oldList, VenueColumns newList) {
+        Set<String> newIds = new HashSet<>();
+        for (int i = 0; i < newList.size(); ++i) {
+            newIds.add(newList.getId(i));
+        }
+
+        Map<String, Integer> oldById = new HashMap<>();
+        List<String> working = new ArrayList<>(oldList.size());
+        for (int i = 0; i < oldList.size(); ++i) {
+            oldById.put(oldList.getId(i), i);
+            working.add(oldList.getId(i));
+        }
+
+        int[] operations = new int[(oldList.size() + newList.size() * 2) * 3];
+        int count = 0;
+
+        //Remove from the end so the positions of the earlier rows stay valid
+        for (int i = working.size() - 1; i >= 0; --i) {
+            if (!newIds.contains(working.get(i))) {
+                count = add(operations, count, REMOVE, i, 0);
+                working.remove(i);
+            }
+        }
+
+        for (int i = 0; i < newList.size(); ++i) {
+            String id = newList.getId(i);
+
+            if (i >= working.size() || !working.get(i).equals(id)) {
+                int from = working.indexOf(id);
+                if (from < 0) {
+                    count = add(operations, count, INSERT, i, 0);
+                    working.add(i, id);
+                    continue;
+                }
+                count = add(operations, count, MOVE, from, i);
+                working.remove(from);
+                working.add(i, id);
+            }
+
+            int old = oldById.get(id);
+            if (!oldList.hasSameContent(old, newList, i)) {
+                count = add(operations, count, CHANGE, i, 0);
+            } else if (oldList.getDistance(old) != newList.getDistance(i)) {
+                count = add(operations, count, CHANGE_DISTANCE, i, 0);
+            }
+        }
+
+        return new VenueListDiff(operations, count);
+    }
+
+    private static int add(int[] operations, int count, int type, int first, int second) {
+        operations[count] = type;
+        operations[count + 1] = first;
+        operations[count + 2] = second;
+        return count + 3;
+    }
+
+    /**
+     * @return true if the lists were identical
+     */
+    public boolean isEmpty() {
+        return operationCount == 0;
+    }
+
+    /**
+     * Replays the operations in order. The adapter's data must already be the new list.
+     */
+    public void dispatchUpdatesTo(updateCallback callback) {
+        for (int i = 0; i < operationCount; i += 3) {
+            int first = operations[i + 1];
+            switch (operations[i]) {
+                case INSERT:
+                    callback.onInserted(first);
+                    break;
+                case REMOVE:
+                    callback.onRemoved(first);
+                    break;
+                case MOVE:
+                    callback.onMoved(first, operations[i + 2]);
+                    break;
+                case CHANGE:
+                    callback.onChanged(first, null);
+                    break;
+                case CHANGE_DISTANCE:
+                    callback.onChanged(first, PAYLOAD_DISTANCE);
+                    break;
+            }
+        }
+    }
+}
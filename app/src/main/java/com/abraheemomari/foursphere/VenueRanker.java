@@ -0,0 +1,186 @@
+package com.abraheemomari.foursphere;
+
+/**
+ * Ranks venues by distance from the user without touching the Android framework.
+ * Coordinates are kept in primitive arrays that are reused between calls, so re-ranking
+ * for a new user position doesn't allocate and produces a sorted index permutation
+ * instead of reordering any objects.
+ *
+ * Not thread safe, each ranker should be used from a single thread.
+ */
+public class VenueRanker {
+
+    //Mean radius of the Earth, the same one GeoHash uses
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    //Below this many elements a partition is sorted by insertion
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private double[] latitudes = new double[0];
+    private double[] longitudes = new double[0];
+    private double[] cosLatitudes = new double[0];
+    private double[] distances = new double[0];
+    private int[] order = new int[0];
+    private int count;
+
+    /**
+     * Replaces the venues being ranked. The arrays only grow, so loading the same number of venues again doesn't allocate.
+     * @param latitudeDegrees Latitude of each venue
+     * @param longitudeDegrees Longitude of each venue
+     * @param count Number of venues in the arrays to use
+     */
+    public void setVenues(double[] latitudeDegrees, double[] longitudeDegrees, int count) {
+        ensureCapacity(count);
+        this.count = count;
+        for (int i = 0; i < count; ++i) {
+            setVenue(i, latitudeDegrees[i], longitudeDegrees[i]);
+        }
+    }
+
+    /**
+     * Starts loading venues one at a time with setVenue
+     */
+    public void reset(int count) {
+        ensureCapacity(count);
+        this.count = count;
+    }
+
+    /**
+     * Sets the coordinates of one venue, index must be below the count given to reset
+     */
+    public void setVenue(int index, double latitudeDegrees, double longitudeDegrees) {
+        double latitude = Math.toRadians(latitudeDegrees);
+        latitudes[index] = latitude;
+        longitudes[index] = Math.toRadians(longitudeDegrees);
+        cosLatitudes[index] = Math.cos(latitude);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (latitudes.length < capacity) {
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+            cosLatitudes = new double[capacity];
+            distances = new double[capacity];
+            order = new int[capacity];
+        }
+    }
+
+    /**
+     * Computes every venue's distance from the user and sorts the venues nearest first
+     * @param fast Use the equirectangular approximation, which is accurate to well under
+     *             a percent for the few kilometers the list covers and skips the trigonometry per venue
+     */
+    public void rank(double userLatitudeDegrees, double userLongitudeDegrees, boolean fast) {
+        double userLatitude = Math.toRadians(userLatitudeDegrees);
+        double userLongitude = Math.toRadians(userLongitudeDegrees);
+        double userCosLatitude = Math.cos(userLatitude);
+
+        if (fast) {
+            for (int i = 0; i < count; ++i) {
+                double x = (longitudes[i] - userLongitude) * userCosLatitude;
+                double y = latitudes[i] - userLatitude;
+                distances[i] = EARTH_RADIUS_METERS * Math.sqrt(x * x + y * y);
+            }
+        } else {
+            for (int i = 0; i < count; ++i) {
+                double sinLat = Math.sin((latitudes[i] - userLatitude) / 2);
+                double sinLng = Math.sin((longitudes[i] - userLongitude) / 2);
+                double a = sinLat * sinLat + userCosLatitude * cosLatitudes[i] * sinLng * sinLng;
+                distances[i] = 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+            }
+        }
+
+        for (int i = 0; i < count; ++i) {
+            order[i] = i;
+        }
+        sort(0, count - 1);
+    }
+
+    /**
+     * @return Number of venues being ranked
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return Index of the venue at the given rank, 0 being the nearest
+     */
+    public int venueAt(int rank) {
+        return order[rank];
+    }
+
+    /**
+     * @return Distance in meters of the venue at the given index, as of the last call to rank
+     */
+    public double distanceOf(int index) {
+        return distances[index];
+    }
+
+    //Ties are broken by index so the result doesn't depend on the sort's partitioning
+    private boolean isCloser(int a, int b) {
+        double distanceA = distances[a];
+        double distanceB = distances[b];
+        return distanceA < distanceB || (distanceA == distanceB && a < b);
+    }
+
+    /**
+     * Quicksort of the index permutation with median of three pivots, finishing small partitions with insertion sort.
+     * Recurses into the smaller partition only so the stack depth stays logarithmic.
+     */
+    private void sort(int low, int high) {
+        while (high - low >= INSERTION_SORT_THRESHOLD) {
+            int middle = (low + high) >>> 1;
+            if (isCloser(order[middle], order[low])) {
+                swap(middle, low);
+            }
+            if (isCloser(order[high], order[low])) {
+                swap(high, low);
+            }
+            if (isCloser(order[high], order[middle])) {
+                swap(high, middle);
+            }
+            int pivot = order[middle];
+
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (isCloser(order[i], pivot)) {
+                    ++i;
+                }
+                while (isCloser(pivot, order[j])) {
+                    --j;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    ++i;
+                    --j;
+                }
+            }
+
+            if (j - low < high - i) {
+                sort(low, j);
+                low = i;
+            } else {
+                sort(i, high);
+                high = j;
+            }
+        }
+
+        for (int i = low + 1; i <= high; ++i) {
+            int value = order[i];
+            int j = i - 1;
+            while (j >= low && isCloser(value, order[j])) {
+                order[j + 1] = order[j];
+                --j;
+            }
+            order[j + 1] = value;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int temp = order[a];
+        order[a] = order[b];
+        order[b] = temp;
+    }
+}
@@ -0,0 +1,709 @@
+package com.abraheemomari.foursphere;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sits between the UI and both the network and the database.
+ * Venues cached for the user's location tile are served straight away,
+ * and the tile is revalidated against Foursquare in the background once its TTL has passed.
+ */
+public class VenueRepository {
+
+    public interface pageListener {
+        /**
+         * Called with the merged venues of a page of every query sent
+         * @param exhausted Queries that answered with fewer venues than the page size, so have no further pages
+         */
+        public void pageLoaded(VenueColumns page, List<ExploreQuery> exhausted);
+
+        public void pageFailed();
+    }
+
+    public interface venueListener {
+        /**
+         * Called with the venues cached near the requested location, without the fields only the journal keeps
+         */
+        public void venuesLoaded(VenueColumns restaurants);
+
+        /**
+         * Called after revalidation, or once the journal was read when the tile isn't revalidated,
+         * with only the venues that are new or differ from the cached ones
+         */
+        public void venuesChanged(VenueColumns changed);
+
+        /**
+         * Called once the venues are up to date, after revalidation if any query answered,
+         * or after the journal was read when the tile isn't revalidated
+         */
+        public void venuesRefreshed();
+    }
+
+    public interface snapshotListener {
+        /**
+         * Called with the venues shown last and the location they were queried around
+         */
+        public void snapshotLoaded(VenueColumns restaurants, Location location);
+    }
+
+    public interface searchListener {
+        /**
+         * Called with the cached venues matching the latest search, best match first
+         */
+        public void searchResults(String query, VenueColumns results);
+    }
+
+    //Geohash precision of a location tile, about 1.2km x 0.6km
+    private static final int TILE_PRECISION = 6;
+
+    public static final long DEFAULT_TILE_TTL_MS = 15 * 60 * 1000;
+
+    //How far around the user to look for cached venues
+    private static final double CACHE_RADIUS_METERS = 5000;
+    private static final int CACHE_VENUE_LIMIT = 50;
+
+    //Number of venues asked for in each explore request, Foursquare allows up to 50
+    public static final int PAGE_SIZE = 30;
+
+    //Minimum time between eviction passes over the venue cache
+    private static final long EVICTION_INTERVAL_MS = 6 * 60 * 60 * 1000;
+
+    //Most results a search returns
+    private static final int SEARCH_RESULT_LIMIT = 50;
+
+    public static final List<ExploreQuery> DEFAULT_QUERIES = Collections.singletonList(ExploreQuery.query("food"));
+
+    private static final String SNAPSHOT_FILE = "venues.snapshot";
+
+    private static final String PREFERENCES_NAME = "VenueRepository";
+    private static final String PREF_LAST_LATITUDE = "last_latitude";
+    private static final String PREF_LAST_LONGITUDE = "last_longitude";
+
+    //Venues cached around a location along with when its tile was last fetched
+    private static class CachedTile {
+        final VenueColumns venues;
+        final long fetchedAt;
+
+        CachedTile(VenueColumns venues, long fetchedAt) {
+            this.venues = venues;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private static VenueRepository instance;
+
+    private final Context context;
+    //Snapshot file, journal and preferences I/O, database reads run on Database's reader pool
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile long tileTtl = DEFAULT_TILE_TTL_MS;
+    private volatile long maxVenueAge = Database.DEFAULT_MAX_VENUE_AGE_MS;
+    private volatile int maxVenues = Database.DEFAULT_MAX_VENUES;
+    private volatile List<ExploreQuery> queries = DEFAULT_QUERIES;
+    private long queryTimeout = ExploreFanOut.DEFAULT_QUERY_TIMEOUT_MS;
+    //Fan-outs in progress by the tag of their requests, so cancel can stop them too. Main thread only.
+    private final Map<Object, List<ExploreFanOut>> fanOuts = new HashMap<>();
+    //Listeners waiting for the journal to be read by the tag of their load, so cancel can drop them. Main thread only.
+    private final Map<Object, List<venueListener>> journalLoads = new HashMap<>();
+    private long lastEvictionAt;
+    //Incremented for every search so queued searches that were superseded never run
+    private final AtomicInteger searchGeneration = new AtomicInteger();
+    private final SharedPreferences preferences;
+    //Kept in memory so the main thread never reads preferences. Read from them once on the executor.
+    private final AtomicReference<Location> lastQueryLocation = new AtomicReference<>();
+
+    private VenueRepository(Context context) {
+        this.context = context.getApplicationContext();
+        preferences = this.context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                //A load that already ran is more recent than what was saved
+                lastQueryLocation.compareAndSet(null, readLastQueryLocation());
+            }
+        });
+    }
+
+    public static synchronized VenueRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new VenueRepository(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Sets how long a tile's venues are served without revalidating them
+     */
+    public void setTileTtl(long ttlMillis) {
+        tileTtl = ttlMillis;
+    }
+
+    /**
+     * Bounds the venue cache, which is evicted at most every few hours as venues are loaded
+     * @param maxAgeMillis Venues not returned by Foursquare for this long are deleted
+     * @param maxVenues Beyond this many venues the least recently seen are deleted
+     */
+    public void setCacheBounds(long maxAgeMillis, int maxVenues) {
+        maxVenueAge = maxAgeMillis;
+        this.maxVenues = maxVenues;
+    }
+
+    /**
+     * Sets the queries whose venues are merged into one list. They are sent at once, so more queries
+     * cost more requests but not more latency.
+     */
+    public void setQueries(ExploreQuery... queries) {
+        this.queries = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(queries)));
+    }
+
+    public List<ExploreQuery> getQueries() {
+        return queries;
+    }
+
+    /**
+     * Sets how long a fan-out waits for its slowest queries before dropping them
+     */
+    public void setQueryTimeout(long timeoutMillis) {
+        queryTimeout = timeoutMillis;
+    }
+
+    /**
+     * @return Key of the location tile containing the coordinates
+     */
+    public static String tileFor(double latitude, double longitude) {
+        return GeoHash.encode(latitude, longitude, TILE_PRECISION);
+    }
+
+    /**
+     * Serves the cached venues near a location, then revalidates the location's tile if it is stale,
+     * or else fills in the fields of its venues the journal keeps
+     * @param tag Tag used to cancel the network request, see cancel
+     * @param listener Notified on the main thread
+     */
+    public void load(final double latitude, final double longitude, final Object tag, final venueListener listener) {
+        final String tile = tileFor(latitude, longitude);
+
+        //Remember where we last looked so the same venues can be shown before the next fix
+        Location queried = new Location(PREFERENCES_NAME);
+        queried.setLatitude(latitude);
+        queried.setLongitude(longitude);
+        lastQueryLocation.set(queried);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                preferences.edit()
+                        .putString(PREF_LAST_LATITUDE, String.valueOf(latitude))
+                        .putString(PREF_LAST_LONGITUDE, String.valueOf(longitude))
+                        .apply();
+            }
+        });
+
+        final Database database = Database.getInstance(context);
+        database.read(new Database.reader<CachedTile>() {
+            @Override
+            public CachedTile read(Database database) {
+                VenueColumns venues = database.getVenuesNear(latitude, longitude, CACHE_RADIUS_METERS, CACHE_VENUE_LIMIT);
+                return new CachedTile(venues, database.getTileFetchedAt(tile));
+            }
+        }, new Database.readListener<CachedTile>() {
+            @Override
+            public void onRead(CachedTile cached) {
+                //Queued on the write executor, the venues are already on their way to the screen
+                database.markVenuesSeen(cached.venues);
+                database.recordTileVisit(tile, latitude, longitude);
+                evictIfDue(database);
+
+                listener.venuesLoaded(cached.venues);
+
+                boolean stale = System.currentTimeMillis() - cached.fetchedAt >= tileTtl;
+                if (stale && isConnected()) {
+                    revalidate(latitude, longitude, tile, cached.venues, tag, listener);
+                } else {
+                    //Revalidation brings every field anyway, otherwise fill them in from the journal after the first bind
+                    loadJournaledFields(tile, cached.venues, tag, listener);
+                }
+            }
+        });
+    }
+
+    /**
+     * Parses the tile's journaled responses on the executor, and reports the cached venues whose journaled version
+     * has fields the VENUES table doesn't keep, such as whether the venue is open, through venuesChanged.
+     * Venues of neighbouring tiles are left as cached. Dropped if the load is cancelled before it is delivered.
+     */
+    private void loadJournaledFields(final String tile, final VenueColumns cached, final Object tag,
+                                     final venueListener listener) {
+        final List<ExploreQuery> journaledQueries = queries;
+        List<venueListener> waiting = journalLoads.get(tag);
+        if (waiting == null) {
+            waiting = new ArrayList<>();
+            journalLoads.put(tag, waiting);
+        }
+        waiting.add(listener);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ResponseJournal journal = ResponseJournal.getInstance(context);
+                VenueColumns journaled = new VenueColumns();
+                //Index in journaled of each venue id, a later response replacing an earlier one
+                Map<String, Integer> journaledById = new HashMap<>();
+                for (ExploreQuery query : journaledQueries) {
+                    VenueColumns parsed = journal.read(ResponseJournal.key(tile, query));
+                    if (parsed != null) {
+                        for (int i = 0; i < parsed.size(); ++i) {
+                            journaledById.put(parsed.getId(i), journaled.add(parsed, i));
+                        }
+                    }
+                }
+
+                final VenueColumns changed = new VenueColumns();
+                for (int i = 0; i < cached.size(); ++i) {
+                    Integer full = journaledById.get(cached.getId(i));
+                    if (full != null && !journaled.hasSameContent(full, cached, i)) {
+                        changed.setDistance(changed.add(journaled, full), cached.getDistance(i));
+                    }
+                }
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<venueListener> waiting = journalLoads.get(tag);
+                        //Cancelled while the journal was read
+                        if (waiting == null || !waiting.remove(listener)) {
+                            return;
+                        }
+                        if (waiting.isEmpty()) {
+                            journalLoads.remove(tag);
+                        }
+                        if (!changed.isEmpty()) {
+                            listener.venuesChanged(changed);
+                        }
+                        listener.venuesRefreshed();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Parses every journaled response again and writes its venues to the database, without the network.
+     * For when the parser or the VENUES table gain a field, e.g. after a migration adds a column.
+     * @param listener Notified on the main thread once for each journaled response
+     */
+    public void rebuildFromJournal(final Database.upsertListener listener) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ResponseJournal journal = ResponseJournal.getInstance(context);
+                for (String key : journal.keys()) {
+                    VenueColumns venues = journal.read(key);
+                    if (venues != null && !venues.isEmpty()) {
+                        Database.getInstance(context).upsertVenues(venues, listener);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Searches the cached venues by name and category without touching the network.
+     * Only the latest search is answered, earlier ones still queued are skipped.
+     * @param listener Notified on the main thread
+     */
+    public void search(final String query, final double latitude, final double longitude, final searchListener listener) {
+        final int generation = searchGeneration.incrementAndGet();
+        Database.getInstance(context).read(new Database.reader<VenueColumns>() {
+            @Override
+            public VenueColumns read(Database database) {
+                if (generation != searchGeneration.get()) {
+                    return null;
+                }
+                long trace = Metrics.start(Metrics.STAGE_SEARCH_VENUES);
+                VenueColumns results = database.searchVenues(query, latitude, longitude, SEARCH_RESULT_LIMIT);
+                Metrics.end(Metrics.STAGE_SEARCH_VENUES, trace);
+                return results;
+            }
+        }, new Database.readListener<VenueColumns>() {
+            @Override
+            public void onRead(VenueColumns results) {
+                if (generation == searchGeneration.get()) {
+                    listener.searchResults(query, results);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the results of any search still in progress
+     */
+    public void cancelSearch() {
+        searchGeneration.incrementAndGet();
+    }
+
+    /**
+     * Queues an eviction pass if none has run for EVICTION_INTERVAL_MS in this process. Called on the main thread.
+     */
+    private void evictIfDue(Database database) {
+        long now = System.currentTimeMillis();
+        if (lastEvictionAt != 0 && now - lastEvictionAt < EVICTION_INTERVAL_MS) {
+            return;
+        }
+        lastEvictionAt = now;
+
+        database.evictVenues(maxVenueAge, maxVenues, new Database.evictionListener() {
+            @Override
+            public void venuesEvicted(int evicted) {
+                Log.d("Database", "Evicted venues: " + evicted);
+            }
+        });
+    }
+
+    /**
+     * Reads the venues shown last from the snapshot file without opening SQLite.
+     * If the snapshot is missing or corrupt, falls back to the venues cached around the last queried location,
+     * read on Database's reader pool.
+     * @param listener Notified on the main thread, not at all if there is nothing to show
+     */
+    public void loadSnapshot(final snapshotListener listener) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long trace = Metrics.start(Metrics.STAGE_SNAPSHOT_READ);
+                VenueSnapshot snapshot = VenueSnapshot.read(new File(context.getFilesDir(), SNAPSHOT_FILE));
+                Metrics.end(Metrics.STAGE_SNAPSHOT_READ, trace);
+
+                if (snapshot == null) {
+                    loadLastQueried(listener);
+                    return;
+                }
+                final VenueColumns restaurants = snapshot.getVenues();
+                final Location location = new Location(SNAPSHOT_FILE);
+                location.setLatitude(snapshot.getLatitude());
+                location.setLongitude(snapshot.getLongitude());
+                if (restaurants.isEmpty()) {
+                    return;
+                }
+                //The snapshot was saved by a later load than the one in preferences
+                lastQueryLocation.compareAndSet(null, location);
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.snapshotLoaded(restaurants, location);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reads the venues cached around the last queried location for loadSnapshot. Called on the executor,
+     * after the saved location was read.
+     */
+    private void loadLastQueried(final snapshotListener listener) {
+        final Location location = getLastQueryLocation();
+        if (location == null) {
+            return;
+        }
+        Database.getInstance(context).read(new Database.reader<VenueColumns>() {
+            @Override
+            public VenueColumns read(Database database) {
+                return database.getVenuesNear(location.getLatitude(), location.getLongitude(),
+                        CACHE_RADIUS_METERS, CACHE_VENUE_LIMIT);
+            }
+        }, new Database.readListener<VenueColumns>() {
+            @Override
+            public void onRead(VenueColumns restaurants) {
+                if (!restaurants.isEmpty()) {
+                    listener.snapshotLoaded(restaurants, location);
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces the snapshot read by loadSnapshot with the given venues, off the main thread
+     */
+    public void saveSnapshot(VenueColumns restaurants, final double latitude, final double longitude) {
+        final VenueColumns copy = restaurants.copy();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                VenueSnapshot.write(new File(context.getFilesDir(), SNAPSHOT_FILE), latitude, longitude, copy);
+            }
+        });
+    }
+
+    /**
+     * Doesn't touch the disk, so it can be called on the main thread
+     * @return Location of the last call to load, or null if load was never called
+     * or the location saved by an earlier process hasn't been read yet
+     */
+    public Location getLastQueryLocation() {
+        Location location = lastQueryLocation.get();
+        return location != null ? new Location(location) : null;
+    }
+
+    /**
+     * @return Location of the last call to load saved in preferences, or null if there is none
+     */
+    private Location readLastQueryLocation() {
+        String latitude = preferences.getString(PREF_LAST_LATITUDE, null);
+        String longitude = preferences.getString(PREF_LAST_LONGITUDE, null);
+        if (latitude == null || longitude == null) {
+            return null;
+        }
+
+        Location location = new Location(PREFERENCES_NAME);
+        location.setLatitude(Double.parseDouble(latitude));
+        location.setLongitude(Double.parseDouble(longitude));
+        return location;
+    }
+
+    /**
+     * Cancels any network request or journal read started by load or loadPage with the given tag
+     */
+    public void cancel(Object tag) {
+        journalLoads.remove(tag);
+        List<ExploreFanOut> cancelled = fanOuts.remove(tag);
+        if (cancelled != null) {
+            for (ExploreFanOut fanOut : cancelled) {
+                fanOut.cancel();
+            }
+        }
+        VolleySingleton.getInstance(context).cancelAll(tag);
+    }
+
+    /**
+     * Fetches one page of venues of each query from Foursquare and caches them
+     * @param offset Number of venues to skip, a multiple of the page size
+     * @param queries Queries to fetch the page of, e.g. the ones not yet exhausted
+     * @param tag Tag used to cancel the network requests, see cancel
+     * @param listener Notified on the main thread once every query answered or was dropped
+     */
+    public void loadPage(double latitude, double longitude, int offset, final int limit, final List<ExploreQuery> queries,
+                         Object tag, final pageListener listener) {
+        fanOut(latitude, longitude, offset, limit, queries, tag, new ExploreFanOut.fanOutListener() {
+            @Override
+            public void venuesMerged(VenueColumns added) {
+            }
+
+            @Override
+            public void fanOutFinished(VenueColumns merged, int[] responseSizes) {
+                //Judged by each query's own response, the merged page is deduplicated across queries
+                List<ExploreQuery> exhausted = new ArrayList<>();
+                for (int i = 0; i < responseSizes.length; ++i) {
+                    if (responseSizes[i] >= 0 && responseSizes[i] < limit) {
+                        exhausted.add(queries.get(i));
+                    }
+                }
+
+                if (ExploreFanOut.anyAnswered(responseSizes)) {
+                    listener.pageLoaded(merged, exhausted);
+                } else {
+                    Log.e("Error", "No response from foursquare for the next page of venues");
+                    listener.pageFailed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a page of every query at once and merges their venues as they arrive.
+     * Every response is cached, even one that arrives after its query was dropped.
+     */
+    private void fanOut(double latitude, double longitude, int offset, int limit, List<ExploreQuery> sent, final Object tag,
+                        final ExploreFanOut.fanOutListener listener) {
+        final ExploreFanOut[] holder = new ExploreFanOut[1];
+        final ExploreFanOut fanOut = new ExploreFanOut(sent.size(), new ExploreFanOut.fanOutListener() {
+            @Override
+            public void venuesMerged(VenueColumns added) {
+                listener.venuesMerged(added);
+            }
+
+            @Override
+            public void fanOutFinished(VenueColumns merged, int[] responseSizes) {
+                List<ExploreFanOut> running = fanOuts.get(tag);
+                if (running != null) {
+                    running.remove(holder[0]);
+                    if (running.isEmpty()) {
+                        fanOuts.remove(tag);
+                    }
+                }
+                listener.fanOutFinished(merged, responseSizes);
+            }
+        });
+        holder[0] = fanOut;
+
+        List<ExploreFanOut> running = fanOuts.get(tag);
+        if (running == null) {
+            running = new ArrayList<>();
+            fanOuts.put(tag, running);
+        }
+        running.add(fanOut);
+
+        for (int i = 0; i < sent.size(); ++i) {
+            final int query = i;
+            final ExploreQuery exploreQuery = sent.get(i);
+            //Only first pages are journaled, they are what a tile shows offline
+            String journalKey = offset == 0 ? ResponseJournal.key(tileFor(latitude, longitude), exploreQuery) : null;
+            String url = exploreUrl(latitude, longitude, exploreQuery, offset, limit);
+            addExploreRequest(url, journalKey, tag, new Response.Listener<VenueColumns>() {
+                @Override
+                public void onResponse(VenueColumns response) {
+                    fanOut.answered(query, response);
+                }
+            }, new Response.ErrorListener() {
+                @Override
+                public void onErrorResponse(VolleyError error) {
+                    Log.e("Error", "No response from foursquare for " + exploreQuery);
+                    fanOut.failed(query);
+                }
+            });
+        }
+        fanOut.start(queryTimeout);
+    }
+
+    /**
+     * Sends an explore request, sharing the response of an identical request if one is in flight.
+     * Each response from the network is cached once, however many requests share it.
+     * @param journalKey Key to journal the raw response under, or null not to journal it
+     */
+    private void addExploreRequest(final String url, final String journalKey, Object tag, Response.Listener<VenueColumns> listener,
+                                   Response.ErrorListener errorListener) {
+        VolleySingleton.getInstance(context).addCoalescedRequest(url, tag, new RequestCoalescer.requestFactory<VenueColumns>() {
+            @Override
+            public Request<VenueColumns> create(final Response.Listener<VenueColumns> listener,
+                                                    Response.ErrorListener errorListener) {
+                //Called once per network request, before the coalescer hands the response to every subscriber
+                Response.Listener<VenueColumns> caching = new Response.Listener<VenueColumns>() {
+                    @Override
+                    public void onResponse(VenueColumns response) {
+                        cacheVenues(response);
+                        listener.onResponse(response);
+                    }
+                };
+                ExploreRequest request = new ExploreRequest(url, caching, errorListener);
+                if (journalKey != null) {
+                    request.setJournal(ResponseJournal.getInstance(context), journalKey);
+                }
+                return request;
+            }
+        }, listener, errorListener);
+    }
+
+    /**
+     * Writes the whole batch to the database in one transaction off the main thread
+     */
+    private void cacheVenues(VenueColumns restaurants) {
+        Database.getInstance(context).upsertVenues(restaurants, new Database.upsertListener() {
+            @Override
+            public void venuesUpserted(Database.UpsertResult result) {
+                Log.d("Database", "Cached venues: " + result);
+            }
+        });
+    }
+
+    /**
+     * Fetches the first page of every query and reports the venues that changed as each response arrives
+     */
+    private void revalidate(double latitude, double longitude, final String tile, final VenueColumns cached,
+                            Object tag, final venueListener listener) {
+        fanOut(latitude, longitude, 0, PAGE_SIZE, queries, tag, new ExploreFanOut.fanOutListener() {
+            @Override
+            public void venuesMerged(VenueColumns added) {
+                VenueColumns changed = changedVenues(cached, added);
+                if (!changed.isEmpty()) {
+                    listener.venuesChanged(changed);
+                }
+            }
+
+            @Override
+            public void fanOutFinished(VenueColumns merged, int[] responseSizes) {
+                //Dropped queries are cached when they answer and refreshed with the tile next time
+                if (ExploreFanOut.anyAnswered(responseSizes)) {
+                    Database.getInstance(context).markTileFetched(tile, System.currentTimeMillis());
+                    listener.venuesRefreshed();
+                } else {
+                    Log.e("Error", "No response from foursquare or the response could not be parsed");
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Venues in the fresh list that aren't in the cached list or whose content differs
+     */
+    private static VenueColumns changedVenues(VenueColumns cached, VenueColumns fresh) {
+        Map<String, Integer> cachedById = new HashMap<>();
+        for (int i = 0; i < cached.size(); ++i) {
+            cachedById.put(cached.getId(i), i);
+        }
+
+        VenueColumns changed = new VenueColumns();
+        for (int i = 0; i < fresh.size(); ++i) {
+            Integer old = cachedById.get(fresh.getId(i));
+            if (old == null || !cached.hasSameContent(old, fresh, i)) {
+                changed.add(fresh, i);
+            }
+        }
+        return changed;
+    }
+
+    /***
+     * API info redacted
+     */
+    //Uses the Foursquare's "explore" end-point which is intended for finding unspecific new venues
+    static String exploreUrl(double latitude, double longitude, ExploreQuery query, int offset, int limit) {
+        return "https://api.foursquare.com/v2/venues/explore" +
+                "?client_id=XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX" +
+                "&client_secret=XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX" +
+                "&v=20130815" +
+                "&ll=" +
+                latitude + "," + longitude +
+                "&venuePhotos=1" +
+                query.toParameter() +
+                "&offset=" + offset +
+                "&limit=" + limit;
+    }
+
+    /**
+     * @return true if the device currently has internet connectivity
+     */
+    private boolean isConnected() {
+        try {
+            ConnectivityManager connectivityManager = (ConnectivityManager) context
+                    .getSystemService(Context.CONNECTIVITY_SERVICE);
+
+            NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+            return networkInfo != null && networkInfo.isAvailable() && networkInfo.isConnected();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.e("Error", "Problem checking for internet connection");
+            return false;
+        }
+    }
+}
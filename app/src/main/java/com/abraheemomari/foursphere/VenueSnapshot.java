@@ -0,0 +1,276 @@
+package com.abraheemomari.foursphere;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary copy of the last venue list shown, read back through a memory-mapped file
+ * so the list can be drawn on a cold start without opening SQLite.
+ *
+ * Layout, big-endian:
+ * header    magic, version, venue count, string count, CRC32 of everything after the header,
+ *           latitude and longitude of the query
+ * columns   latitudes, longitudes, then for each venue the string table index of its
+ *           id, name, category, open state and photo URL
+ * strings   end offset of each string, then the UTF-8 bytes of every string back to back.
+ *           Equal strings are stored once, so repeated categories and open states cost an index.
+ */
+public class VenueSnapshot {
+
+    //"FSVS"
+    private static final int MAGIC = 0x46535653;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 4 + 8 + 8;
+    private static final int STRINGS_PER_VENUE = 5;
+
+    private final double latitude;
+    private final double longitude;
+    private final VenueColumns venues;
+
+    private VenueSnapshot(double latitude, double longitude, VenueColumns venues) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.venues = venues;
+    }
+
+    /**
+     * @return Latitude the snapshot's venues were queried around
+     */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    /**
+     * @return Longitude the snapshot's venues were queried around
+     */
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public VenueColumns getVenues() {
+        return venues;
+    }
+
+    /**
+     * Writes the venues to a temporary file and renames it over the snapshot,
+     * so a reader sees either the old snapshot or the new one and never a partial write
+     * @return true if the snapshot was replaced
+     */
+    public static boolean write(File file, double latitude, double longitude, VenueColumns venues) {
+        ByteBuffer buffer;
+        try {
+            buffer = encode(latitude, longitude, venues);
+        } catch (UnsupportedEncodingException e) {
+            Log.e("Error", "Could not encode venue snapshot", e);
+            return false;
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(buffer.array(), 0, buffer.limit());
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e("Error", "Could not write venue snapshot", e);
+            temp.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        if (!temp.renameTo(file)) {
+            Log.e("Error", "Could not replace venue snapshot");
+            temp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The snapshot in the file, or null if there is none or it is corrupt or from another version
+     */
+    public static VenueSnapshot read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(buffer);
+        } catch (IOException e) {
+            Log.e("Error", "Could not read venue snapshot", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    static ByteBuffer encode(double latitude, double longitude, VenueColumns venues)
+            throws UnsupportedEncodingException {
+        int count = venues.size();
+
+        //Intern the strings so each distinct value is stored once
+        Map<String, Integer> indices = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        int[] stringIndices = new int[count * STRINGS_PER_VENUE];
+        int stringBytes = 0;
+        for (int i = 0; i < count; ++i) {
+            String[] fields = {venues.getId(i), venues.getName(i), venues.getCategory(i),
+                    venues.isOpen(i), venues.getPhotoURL(i)};
+            for (int field = 0; field < STRINGS_PER_VENUE; ++field) {
+                String value = fields[field] != null ? fields[field] : "";
+                Integer index = indices.get(value);
+                if (index == null) {
+                    byte[] bytes = value.getBytes("UTF-8");
+                    index = strings.size();
+                    indices.put(value, index);
+                    strings.add(bytes);
+                    stringBytes += bytes.length;
+                }
+                stringIndices[i * STRINGS_PER_VENUE + field] = index;
+            }
+        }
+
+        int bodyBytes = count * (8 + 8 + 4 * STRINGS_PER_VENUE) + strings.size() * 4 + stringBytes;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + bodyBytes);
+
+        buffer.position(HEADER_BYTES);
+        for (int i = 0; i < count; ++i) {
+            buffer.putDouble(venues.getLatitude(i));
+        }
+        for (int i = 0; i < count; ++i) {
+            buffer.putDouble(venues.getLongitude(i));
+        }
+        for (int index : stringIndices) {
+            buffer.putInt(index);
+        }
+        int end = 0;
+        for (byte[] bytes : strings) {
+            end += bytes.length;
+            buffer.putInt(end);
+        }
+        for (byte[] bytes : strings) {
+            buffer.put(bytes);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_BYTES, bodyBytes);
+
+        buffer.position(0);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(count);
+        buffer.putInt(strings.size());
+        buffer.putInt((int) crc.getValue());
+        buffer.putDouble(latitude);
+        buffer.putDouble(longitude);
+
+        buffer.position(0);
+        buffer.limit(HEADER_BYTES + bodyBytes);
+        return buffer;
+    }
+
+    static VenueSnapshot decode(ByteBuffer buffer) {
+        try {
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            int count = buffer.getInt();
+            int stringCount = buffer.getInt();
+            int checksum = buffer.getInt();
+            double latitude = buffer.getDouble();
+            double longitude = buffer.getDouble();
+            //Counts that couldn't fit in the file mean it is corrupt, and shouldn't size any allocation
+            if (count < 0 || stringCount < 0 || count > buffer.remaining() / 16 || stringCount > buffer.remaining() / 4) {
+                return null;
+            }
+
+            //Checksum the body in chunks, since CRC32 can't read a ByteBuffer before API 26
+            int bodyStart = buffer.position();
+            byte[] chunk = new byte[8192];
+            CRC32 crc = new CRC32();
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            buffer.position(bodyStart);
+
+            double[] latitudes = new double[count];
+            double[] longitudes = new double[count];
+            for (int i = 0; i < count; ++i) {
+                latitudes[i] = buffer.getDouble();
+            }
+            for (int i = 0; i < count; ++i) {
+                longitudes[i] = buffer.getDouble();
+            }
+            int[] stringIndices = new int[count * STRINGS_PER_VENUE];
+            for (int i = 0; i < stringIndices.length; ++i) {
+                stringIndices[i] = buffer.getInt();
+            }
+            int[] ends = new int[stringCount];
+            for (int i = 0; i < stringCount; ++i) {
+                ends[i] = buffer.getInt();
+            }
+
+            byte[] stringBytes = new byte[buffer.remaining()];
+            buffer.get(stringBytes);
+            String[] strings = new String[stringCount];
+            int start = 0;
+            for (int i = 0; i < stringCount; ++i) {
+                strings[i] = new String(stringBytes, start, ends[i] - start, "UTF-8");
+                start = ends[i];
+            }
+
+            VenueColumns venues = new VenueColumns(count);
+            for (int i = 0; i < count; ++i) {
+                int base = i * STRINGS_PER_VENUE;
+                venues.add(strings[stringIndices[base]], strings[stringIndices[base + 1]],
+                        latitudes[i], longitudes[i], strings[stringIndices[base + 2]],
+                        VenueColumns.openStateOf(strings[stringIndices[base + 3]]), strings[stringIndices[base + 4]]);
+            }
+            return new VenueSnapshot(latitude, longitude, venues);
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            //A string index or offset that points outside the table
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+}
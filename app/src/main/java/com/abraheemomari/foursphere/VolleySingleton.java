@@ -1,39 +1,94 @@
 package com.abraheemomari.foursphere;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.util.LruCache;
+import android.util.Log;
 
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
 import com.android.volley.toolbox.ImageLoader;
-import com.android.volley.toolbox.Volley;
+import com.android.volley.toolbox.ImageRequest;
 
+import java.io.File;
+
+/**
+ * Holds the app's request queues, one per priority lane.
+ * Each lane has its own network threads, so venue metadata never waits behind photos
+ * and photos for rows on screen never wait behind photos being prefetched.
+ * Thread counts of the lanes are set in res/values/integers.xml.
+ */
 public class VolleySingleton {
+    //Explore requests and anything else the list's data depends on
+    public static final int LANE_CRITICAL = 0;
+    //Photos for rows being bound on screen
+    public static final int LANE_VISIBLE_IMAGE = 1;
+    //Photos for rows that aren't on screen yet, and background prefetching of frequent tiles
+    public static final int LANE_PREFETCH_IMAGE = 2;
+
+    //Size of the disk tier holding encoded photos
+    private static final int IMAGE_DISK_CACHE_BYTES = 32 * 1024 * 1024;
+
+    //Expected size of a photo before any has been downloaded, roughly a 300x300 JPEG from Foursquare
+    private static final long DEFAULT_IMAGE_BYTES = 25 * 1024;
+
+    //Weight of the previous estimate when a photo's size is folded into it
+    private static final double IMAGE_BYTES_SMOOTHING = 0.9;
+
+    //Size of the disk tier holding API responses and their validators, the same as Volley's default
+    private static final int RESPONSE_DISK_CACHE_BYTES = 5 * 1024 * 1024;
+
     private static VolleySingleton instance;
     private RequestQueue requestQueue;
+    private RequestQueue imageRequestQueue;
+    private RequestQueue prefetchRequestQueue;
     private ImageLoader imageLoader;
+    private ImageLoader prefetchImageLoader;
+    private RequestCoalescer coalescer;
+    private final TimingHttpStack httpStack = new TimingHttpStack();
+    //Moving average of the bytes photos took on the wire
+    private volatile long expectedImageBytes = DEFAULT_IMAGE_BYTES;
     private static Context context;
 
     private VolleySingleton(Context context) {
         VolleySingleton.context = context;
+        Context appContext = context.getApplicationContext();
+        httpStack.setTimingListener(new TimingHttpStack.timingListener() {
+            @Override
+            public void requestTimed(Request<?> request, TimingHttpStack.RequestTiming timing) {
+                Log.d("Network", timing.toString());
+
+                long totalMs = timing.dnsMs + timing.connectMs + timing.timeToFirstByteMs + timing.bodyMs;
+                Metrics.record(request instanceof ImageRequest ? Metrics.STAGE_NETWORK_IMAGE : Metrics.STAGE_NETWORK_EXPLORE,
+                        totalMs * 1000);
+                Metrics.add(Metrics.COUNTER_NETWORK_BYTES, timing.transferredBytes);
+                if (request instanceof ImageRequest && timing.statusCode == 200) {
+                    expectedImageBytes = (long) (expectedImageBytes * IMAGE_BYTES_SMOOTHING
+                            + timing.transferredBytes * (1 - IMAGE_BYTES_SMOOTHING));
+                }
+                if (timing.statusCode == 304) {
+                    Metrics.increment(Metrics.COUNTER_HTTP_NOT_MODIFIED);
+                }
+            }
+        });
         requestQueue = getRequestQueue();
+        coalescer = new RequestCoalescer(requestQueue);
+
+        //Both image lanes share one disk cache, so a prefetched photo is a cache hit once its row is bound
+        File imageCacheDir = new File(appContext.getCacheDir(), "images");
+        ImageDiskCache imageDiskCache = new ImageDiskCache(imageCacheDir, IMAGE_DISK_CACHE_BYTES);
+        imageRequestQueue = new RequestQueue(imageDiskCache, new BasicNetwork(httpStack),
+                appContext.getResources().getInteger(R.integer.visible_image_lane_threads));
+        imageRequestQueue.start();
+        prefetchRequestQueue = new RequestQueue(imageDiskCache, new BasicNetwork(httpStack),
+                appContext.getResources().getInteger(R.integer.prefetch_image_lane_threads));
+        prefetchRequestQueue.start();
 
-        imageLoader = new ImageLoader(requestQueue,
-                new ImageLoader.ImageCache() {
-                    private final LruCache<String, Bitmap>
-                            cache = new LruCache<String, Bitmap>(20);
-
-                    @Override
-                    public Bitmap getBitmap(String url) {
-                        return cache.get(url);
-                    }
-
-                    @Override
-                    public void putBitmap(String url, Bitmap bitmap) {
-                        cache.put(url, bitmap);
-                    }
-                });
+        //NetworkImageView passes its own size to the loader, so photos are decoded downsampled to fit the view
+        BitmapMemoryCache bitmapCache = new BitmapMemoryCache(appContext);
+        imageLoader = new ImageLoader(imageRequestQueue, bitmapCache);
+        prefetchImageLoader = new ImageLoader(prefetchRequestQueue, bitmapCache);
     }
 
 
@@ -50,23 +105,93 @@ public class VolleySingleton {
      */
     public RequestQueue getRequestQueue() {
         if (requestQueue == null) {
-            requestQueue = Volley.newRequestQueue(context.getApplicationContext());
+            Context appContext = context.getApplicationContext();
+            File cacheDir = new File(appContext.getCacheDir(), "volley");
+            requestQueue = new RequestQueue(new DiskBasedCache(cacheDir, RESPONSE_DISK_CACHE_BYTES), new BasicNetwork(httpStack),
+                    appContext.getResources().getInteger(R.integer.critical_lane_threads));
+            requestQueue.start();
         }
         return requestQueue;
     }
 
     /**
-     * Adds a request to the request queue for processing
+     * @param lane One of the LANE constants
+     * @return Request queue of the lane
+     */
+    public RequestQueue getRequestQueue(int lane) {
+        switch (lane) {
+            case LANE_CRITICAL:
+                return getRequestQueue();
+            case LANE_VISIBLE_IMAGE:
+                return imageRequestQueue;
+            case LANE_PREFETCH_IMAGE:
+                return prefetchRequestQueue;
+            default:
+                throw new IllegalArgumentException("Unknown lane: " + lane);
+        }
+    }
+
+    /**
+     * Adds a request to the critical lane for processing
      */
     public <T> void addToRequestQueue(Request<T> request) {
         getRequestQueue().add(request);
     }
 
     /**
-     * Allows images to be loaded from URLs
+     * Adds a request unless an identical one is already in flight or was just answered,
+     * in which case the listener shares its response. See RequestCoalescer.
+     * @param url URL the factory's request will load, used to match identical requests
+     * @param tag Tag used to cancel the request with cancelAll
+     */
+    public <T> void addCoalescedRequest(String url, Object tag, RequestCoalescer.requestFactory<T> factory,
+                                        Response.Listener<T> listener, Response.ErrorListener errorListener) {
+        coalescer.add(url, tag, factory, listener, errorListener);
+    }
+
+    /**
+     * Cancels every request added with the tag, whether it was coalesced or not
+     */
+    public void cancelAll(Object tag) {
+        coalescer.cancel(tag);
+        getRequestQueue().cancelAll(tag);
+    }
+
+    /**
+     * @return Layer sharing identical explore requests, to configure its key precision and memo TTL
+     */
+    public RequestCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * @return The HTTP stack behind every queue, to replace its timing listener
+     */
+    public TimingHttpStack getHttpStack() {
+        return httpStack;
+    }
+
+    /**
+     * @return Bytes a photo is expected to take on the wire, averaged over the photos downloaded so far
+     */
+    public long getExpectedImageBytes() {
+        return expectedImageBytes;
+    }
+
+    /**
+     * Allows images to be loaded from URLs on the visible image lane
      * @return ImageLoader
      */
     public ImageLoader getImageLoader() {
         return imageLoader;
     }
+
+    /**
+     * Loads images on the prefetch lane into the same memory cache as getImageLoader,
+     * so a photo warmed with the same URL and size is already decoded when its row is bound
+     * @return ImageLoader
+     */
+    public ImageLoader getPrefetchImageLoader() {
+        return prefetchImageLoader;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,232 @@
+package com.abraheemomari.foursphere;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.HttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs TimingHttpStack against a local HTTP server
+ */
+public class TimingHttpStackTest {
+
+    static {
+        //The JDK drops a Host header set by the caller unless this is on, Android's HttpURLConnection keeps it
+        System.setProperty("sun.net.http.allowRestrictedHeaders", "true");
+    }
+
+    private static final byte[] BODY = repeat("{\"venue\":\"Blue Bottle Coffee\"},", 200);
+    private static final String ETAG = "\"explore-1\"";
+
+    private HttpServer server;
+    private TimingHttpStack stack;
+    private final List<TimingHttpStack.RequestTiming> timings = new ArrayList<>();
+    //Remote port of every request the server answered, one per connection used
+    private final List<Integer> clientPorts = Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<String> hosts = Collections.synchronizedList(new ArrayList<String>());
+    //Whether the stack reported the request on the wire while the server was answering it
+    private final List<Boolean> onTheWire = Collections.synchronizedList(new ArrayList<Boolean>());
+
+    @Before
+    public void setUp() throws IOException {
+        //Bound to whichever address localhost resolves to first, so requests by name reach it
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("localhost"), 0), 0);
+        server.createContext("/gzip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                hosts.add(exchange.getRequestHeaders().getFirst("Host"));
+                String etag = exchange.getRequestHeaders().getFirst("If-None-Match");
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                exchange.getResponseHeaders().add("ETag", ETAG);
+                if (ETAG.equals(etag)) {
+                    exchange.sendResponseHeaders(304, -1);
+                } else if ("gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+                    byte[] gzipped = gzip(BODY);
+                    exchange.sendResponseHeaders(200, gzipped.length);
+                    exchange.getResponseBody().write(gzipped);
+                } else {
+                    exchange.sendResponseHeaders(406, -1);
+                }
+                exchange.close();
+            }
+        });
+        server.createContext("/empty", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                onTheWire.add(stack.isOnTheWire(url(exchange.getRequestURI().toString())));
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(Integer.parseInt(exchange.getRequestURI().getQuery()), -1);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        stack = new TimingHttpStack();
+        stack.setTimingListener(new TimingHttpStack.timingListener() {
+            @Override
+            public void requestTimed(Request<?> request, TimingHttpStack.RequestTiming timing) {
+                timings.add(timing);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void inflatesGzipBodies() throws Exception {
+        HttpResponse response = stack.performRequest(get("/gzip"), new HashMap<String, String>());
+
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertArrayEquals(BODY, read(response.getEntity().getContent()));
+        assertEquals(ETAG, header(response, "ETag"));
+        //The body was inflated, so the encoding header must not reach Volley
+        assertNull(header(response, "Content-Encoding"));
+
+        TimingHttpStack.RequestTiming timing = timings.get(0);
+        assertEquals(BODY.length, timing.bodyBytes);
+        assertTrue("gzip should shrink the body", timing.transferredBytes < timing.bodyBytes);
+    }
+
+    @Test
+    public void revalidatesWithAnEmptyNotModified() throws Exception {
+        Map<String, String> revalidation = new HashMap<>();
+        revalidation.put("If-None-Match", ETAG);
+        HttpResponse response = stack.performRequest(get("/gzip"), revalidation);
+
+        assertEquals(304, response.getStatusLine().getStatusCode());
+        assertEquals(0, response.getEntity().getContentLength());
+        assertEquals(0, timings.get(0).transferredBytes);
+    }
+
+    @Test
+    public void acceptsEmptyBodiesDespiteGzipEncoding() throws Exception {
+        for (int status : new int[]{204, 200}) {
+            HttpResponse response = stack.performRequest(get("/empty?" + status), new HashMap<String, String>());
+            assertEquals(status, response.getStatusLine().getStatusCode());
+            assertEquals(0, response.getEntity().getContentLength());
+        }
+    }
+
+    @Test
+    public void resolvesTheHostBeforeConnecting() throws Exception {
+        HttpResponse response = stack.performRequest(get("/gzip"), new HashMap<String, String>());
+
+        assertArrayEquals(BODY, read(response.getEntity().getContent()));
+        //Connected to the resolved address, but the server still sees the name asked for
+        assertEquals("localhost:" + server.getAddress().getPort(), hosts.get(0));
+        TimingHttpStack.RequestTiming timing = timings.get(0);
+        assertTrue(timing.dnsMs >= 0 && timing.connectMs >= 0);
+        assertTrue(timing.toString().contains("dns="));
+    }
+
+    @Test
+    public void tracksRequestsOnTheWire() throws Exception {
+        Request<Void> request = get("/empty?204");
+        assertFalse(stack.isOnTheWire(request.getUrl()));
+
+        stack.performRequest(request, new HashMap<String, String>());
+
+        assertTrue(onTheWire.get(0));
+        assertFalse(stack.isOnTheWire(request.getUrl()));
+    }
+
+    @Test
+    public void reusesTheConnection() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            HttpResponse response = stack.performRequest(get("/gzip"), new HashMap<String, String>());
+            assertArrayEquals(BODY, read(response.getEntity().getContent()));
+        }
+        Map<String, String> revalidation = new HashMap<>();
+        revalidation.put("If-None-Match", ETAG);
+        stack.performRequest(get("/gzip"), revalidation);
+
+        assertEquals(4, clientPorts.size());
+        for (int port : clientPorts) {
+            assertEquals("every request should use the first connection", (int) clientPorts.get(0), port);
+        }
+    }
+
+    private Request<Void> get(String path) {
+        return new Request<Void>(Request.Method.GET, url(path), null) {
+            @Override
+            protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+                return null;
+            }
+
+            @Override
+            protected void deliverResponse(Void response) {
+            }
+        };
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    private static String header(HttpResponse response, String name) {
+        for (org.apache.http.Header header : response.getAllHeaders()) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static byte[] repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; ++i) {
+            builder.append(text);
+        }
+        return builder.toString().getBytes();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
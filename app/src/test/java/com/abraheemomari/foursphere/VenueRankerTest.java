@@ -0,0 +1,131 @@
+package com.abraheemomari.foursphere;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VenueRankerTest {
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    //Reference haversine, written independently of the ranker
+    private static double haversine(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.pow(Math.sin(dLat / 2), 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.pow(Math.sin(dLng / 2), 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.sqrt(a));
+    }
+
+    private static VenueRanker rankerFor(double[] latitudes, double[] longitudes, double userLatitude, double userLongitude,
+                                         boolean fast) {
+        VenueRanker ranker = new VenueRanker();
+        ranker.setVenues(latitudes, longitudes, latitudes.length);
+        ranker.rank(userLatitude, userLongitude, fast);
+        return ranker;
+    }
+
+    @Test
+    public void exactDistancesMatchHaversine() {
+        double[] latitudes = {40.7128, 51.5074, -33.8688, 40.7306};
+        double[] longitudes = {-74.0060, -0.1278, 151.2093, -73.9352};
+        VenueRanker ranker = rankerFor(latitudes, longitudes, 40.7484, -73.9857, false);
+
+        for (int i = 0; i < latitudes.length; ++i) {
+            double expected = haversine(40.7484, -73.9857, latitudes[i], longitudes[i]);
+            assertEquals("venue " + i, expected, ranker.distanceOf(i), expected * 1e-9 + 1e-6);
+        }
+    }
+
+    @Test
+    public void fastDistancesAreWithinAPercentNearby() {
+        Random random = new Random(7);
+        int count = 500;
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        for (int i = 0; i < count; ++i) {
+            //Within about 5km of the user, the radius the list covers
+            latitudes[i] = 47.6062 + (random.nextDouble() - 0.5) * 0.09;
+            longitudes[i] = -122.3321 + (random.nextDouble() - 0.5) * 0.13;
+        }
+        VenueRanker ranker = rankerFor(latitudes, longitudes, 47.6062, -122.3321, true);
+
+        for (int i = 0; i < count; ++i) {
+            double expected = haversine(47.6062, -122.3321, latitudes[i], longitudes[i]);
+            assertEquals("venue " + i, expected, ranker.distanceOf(i), expected * 0.01 + 0.01);
+        }
+    }
+
+    @Test
+    public void ranksNearestFirst() {
+        Random random = new Random(42);
+        int count = 1000;
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        for (int i = 0; i < count; ++i) {
+            latitudes[i] = 34.0522 + (random.nextDouble() - 0.5) * 0.2;
+            longitudes[i] = -118.2437 + (random.nextDouble() - 0.5) * 0.2;
+        }
+
+        for (boolean fast : new boolean[]{false, true}) {
+            VenueRanker ranker = rankerFor(latitudes, longitudes, 34.0522, -118.2437, fast);
+            assertEquals(count, ranker.size());
+
+            boolean[] seen = new boolean[count];
+            for (int rank = 0; rank < count; ++rank) {
+                int venue = ranker.venueAt(rank);
+                assertTrue("venue ranked twice", !seen[venue]);
+                seen[venue] = true;
+                if (rank > 0) {
+                    assertTrue("out of order at rank " + rank,
+                            ranker.distanceOf(ranker.venueAt(rank - 1)) <= ranker.distanceOf(venue));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tiesKeepIndexOrder() {
+        //Every venue is at one of two spots, so most distances are equal
+        int count = 100;
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        for (int i = 0; i < count; ++i) {
+            latitudes[i] = i % 2 == 0 ? 10.001 : 10.002;
+            longitudes[i] = 20;
+        }
+        VenueRanker ranker = rankerFor(latitudes, longitudes, 10, 20, false);
+
+        for (int rank = 0; rank < count / 2; ++rank) {
+            assertEquals(rank * 2, ranker.venueAt(rank));
+            assertEquals(rank * 2 + 1, ranker.venueAt(count / 2 + rank));
+        }
+    }
+
+    @Test
+    public void rerankingReusesVenues() {
+        double[] latitudes = {0, 0, 0};
+        double[] longitudes = {0.01, 0.02, 0.03};
+        VenueRanker ranker = rankerFor(latitudes, longitudes, 0, 0, false);
+        assertEquals(0, ranker.venueAt(0));
+
+        ranker.rank(0, 0.04, false);
+        assertEquals(2, ranker.venueAt(0));
+        assertEquals(1, ranker.venueAt(1));
+        assertEquals(0, ranker.venueAt(2));
+    }
+
+    @Test
+    public void emptyAndSingleVenue() {
+        VenueRanker ranker = rankerFor(new double[0], new double[0], 0, 0, false);
+        assertEquals(0, ranker.size());
+
+        ranker = rankerFor(new double[]{1}, new double[]{1}, 1, 1, true);
+        assertEquals(1, ranker.size());
+        assertEquals(0, ranker.venueAt(0));
+        assertEquals(0, ranker.distanceOf(0), 1e-9);
+    }
+}
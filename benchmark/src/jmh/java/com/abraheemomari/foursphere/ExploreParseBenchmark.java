@@ -0,0 +1,47 @@
+package com.abraheemomari.foursphere;
+
+import android.util.JsonReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming parse of whole explore responses, as ExploreRequest does on Volley's network thread
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExploreParseBenchmark {
+
+    //Responses of 30 venues, our page size, and 50, the most Foursquare returns
+    @Param({"explore_30.json", "explore_50.json"})
+    public String fixture;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = Fixtures.read(fixture);
+    }
+
+    @Benchmark
+    public VenueColumns parseExplore() throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(payload), "UTF-8"));
+        try {
+            return ExploreRequest.parseExplore(reader);
+        } finally {
+            reader.close();
+        }
+    }
+}
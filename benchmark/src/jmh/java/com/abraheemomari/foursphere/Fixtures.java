@@ -0,0 +1,60 @@
+package com.abraheemomari.foursphere;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Inputs shared by the benchmarks
+ */
+final class Fixtures {
+
+    //SoHo, where the checked in explore responses were taken around
+    static final double LATITUDE = 40.7243;
+    static final double LONGITUDE = -73.9973;
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return Bytes of a file in src/jmh/resources
+     */
+    static byte[] read(String name) throws IOException {
+        InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Missing fixture " + name);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return Venues scattered within a couple of kilometers of the fixture location, the same for a given seed
+     */
+    static VenueColumns venues(int count, long seed) {
+        Random random = new Random(seed);
+        String[] categories = {"Pizza", "Café", "Sushi", "Tacos", "Bakery", "Italian", "Chinese", "American"};
+        String[] open = {"true", "false", ""};
+
+        VenueColumns venues = new VenueColumns(count);
+        for (int i = 0; i < count; ++i) {
+            venues.add("venue" + seed + "_" + i, "Venue " + i,
+                    LATITUDE + (random.nextDouble() - 0.5) * 0.04,
+                    LONGITUDE + (random.nextDouble() - 0.5) * 0.05,
+                    categories[random.nextInt(categories.length)],
+                    VenueColumns.openStateOf(open[random.nextInt(open.length)]),
+                    "https://irs3.4sqi.net/img/general/300x300/" + random.nextInt(100000000) + ".jpg");
+        }
+        return venues;
+    }
+}
@@ -0,0 +1,41 @@
+package com.abraheemomari.foursphere;
+
+import android.util.JsonReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a venue's photos object into a thumbnail URL. This was photoJSONToURL before parsing
+ * moved to ExploreRequest, and runs once per venue in every response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PhotoUrlBenchmark {
+
+    //Photos object of a venue, as it appears in the explore response
+    private static final String PHOTOS = "{\"count\":412,\"groups\":[{\"type\":\"venue\",\"name\":\"Venue photos\",\"count\":412," +
+            "\"items\":[{\"id\":\"51e5c8b5498e1b2ef8a3c49b\",\"createdAt\":1374015669," +
+            "\"prefix\":\"https://irs3.4sqi.net/img/general/\",\"suffix\":\"/1437422_dJ6YwVnCrwyRlUz0f1hqvSoTZE6Z3nQyPqBT2zVxRjE.jpg\"," +
+            "\"width\":960,\"height\":720,\"user\":{\"id\":\"1437422\",\"firstName\":\"Sam\",\"gender\":\"none\"," +
+            "\"photo\":{\"prefix\":\"https://irs3.4sqi.net/img/user/\",\"suffix\":\"/blank.png\"}},\"visibility\":\"public\"}]}]}";
+
+    @Benchmark
+    public String parseFirstPhoto() throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(PHOTOS));
+        try {
+            return ExploreRequest.parseFirstPhoto(reader);
+        } finally {
+            reader.close();
+        }
+    }
+}
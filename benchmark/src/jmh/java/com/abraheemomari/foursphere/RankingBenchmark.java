@@ -0,0 +1,105 @@
+package com.abraheemomari.foursphere;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distance computation and sorting of the venue list for a new user position
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RankingBenchmark {
+
+    private static final double METERS_PER_MILE = 1609;
+
+    @Param({"30", "300", "3000"})
+    public int count;
+
+    private VenueColumns venues;
+    private VenueRanker ranker;
+    //Moves a little with each invocation, as the user does between location fixes
+    private int step;
+
+    @Setup
+    public void setUp() {
+        venues = Fixtures.venues(count, 42);
+        ranker = new VenueRanker();
+    }
+
+    private double userLatitude() {
+        return Fixtures.LATITUDE + (step % 100) * 0.00001;
+    }
+
+    /**
+     * The same work as RestaurantsAdapter.rank, including copying the venues into columns in rank order
+     */
+    @Benchmark
+    public VenueColumns adapterRank() {
+        ++step;
+        ranker.reset(venues.size());
+        for (int i = 0; i < venues.size(); ++i) {
+            ranker.setVenue(i, venues.getLatitude(i), venues.getLongitude(i));
+        }
+        ranker.rank(userLatitude(), Fixtures.LONGITUDE, true);
+
+        VenueColumns ranked = new VenueColumns(venues.size());
+        for (int rank = 0; rank < ranker.size(); ++rank) {
+            int index = ranker.venueAt(rank);
+            ranked.setDistance(ranked.add(venues, index), (float) (ranker.distanceOf(index) / METERS_PER_MILE));
+        }
+        return ranked;
+    }
+
+    @Benchmark
+    public int rankFast() {
+        ++step;
+        ranker.reset(venues.size());
+        for (int i = 0; i < venues.size(); ++i) {
+            ranker.setVenue(i, venues.getLatitude(i), venues.getLongitude(i));
+        }
+        ranker.rank(userLatitude(), Fixtures.LONGITUDE, true);
+        return ranker.venueAt(0);
+    }
+
+    @Benchmark
+    public int rankHaversine() {
+        ++step;
+        ranker.reset(venues.size());
+        for (int i = 0; i < venues.size(); ++i) {
+            ranker.setVenue(i, venues.getLatitude(i), venues.getLongitude(i));
+        }
+        ranker.rank(userLatitude(), Fixtures.LONGITUDE, false);
+        return ranker.venueAt(0);
+    }
+
+    /**
+     * A Restaurant per venue with its haversine distance, sorted with Restaurant.compareTo,
+     * the way lists were ranked before they were held as columns
+     */
+    @Benchmark
+    public List<Restaurant> compareToSort() {
+        ++step;
+        double latitude = userLatitude();
+        List<Restaurant> sorted = new ArrayList<>(venues.size());
+        for (int i = 0; i < venues.size(); ++i) {
+            Restaurant venue = venues.toRestaurant(i);
+            venue.setDistance(GeoHash.distanceMeters(latitude, Fixtures.LONGITUDE,
+                    venue.getLatitude(), venue.getLongitude()) / METERS_PER_MILE);
+            sorted.add(venue);
+        }
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
@@ -0,0 +1,242 @@
+package com.abraheemomari.foursphere;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Insert and query throughput of the venue table in an embedded SQLite.
+ * Uses the schema and statements of Database through JDBC, since SQLiteOpenHelper needs a device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VenueStoreBenchmark {
+
+    //Venues already cached when a batch is written or a query runs
+    @Param({"500", "5000"})
+    public int cachedVenues;
+
+    //One explore page, VenueRepository.PAGE_SIZE
+    private static final int BATCH_SIZE = 30;
+
+    private static final double QUERY_RADIUS_METERS = 5000;
+    private static final int QUERY_LIMIT = 50;
+
+
+    private Connection connection;
+    private VenueColumns unchangedBatch;
+    private int batch;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(Database.VENUES_CREATE);
+            statement.execute(Database.VENUES_GEOHASH_INDEX);
+            statement.execute(Database.VENUES_LAST_SEEN_INDEX);
+            statement.execute(Database.VENUES_LAST_FETCHED_INDEX);
+            statement.execute(Database.VENUES_FTS_CREATE);
+            for (String trigger : Database.VENUES_FTS_TRIGGERS) {
+                statement.execute(trigger);
+            }
+        } finally {
+            statement.close();
+        }
+
+        writeVenues(Fixtures.venues(cachedVenues, 0));
+        unchangedBatch = Fixtures.venues(BATCH_SIZE, 0);
+        batch = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    /**
+     * A page of venues the cache has never seen
+     */
+    @Benchmark
+    public int upsertNewBatch() throws SQLException {
+        return writeVenues(Fixtures.venues(BATCH_SIZE, ++batch));
+    }
+
+    /**
+     * A page of venues that are all cached already, which only runs the state query and bumps their timestamps
+     */
+    @Benchmark
+    public int upsertUnchangedBatch() throws SQLException {
+        return writeVenues(unchangedBatch);
+    }
+
+    /**
+     * The same work as Database.getVenuesNear
+     */
+    @Benchmark
+    public VenueColumns queryNear() throws SQLException {
+        double[] box = GeoHash.boundingBox(Fixtures.LATITUDE, Fixtures.LONGITUDE, QUERY_RADIUS_METERS);
+        List<String> prefixes = GeoHash.coveringPrefixes(box,
+                GeoHash.precisionForRadius(Fixtures.LATITUDE, QUERY_RADIUS_METERS));
+        String[] args = Database.venuesNearArgs(box, prefixes);
+
+        PreparedStatement statement = connection.prepareStatement(Database.venuesNearQuery(prefixes.size()));
+        VenueColumns inRadius = new VenueColumns();
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                statement.setString(i + 1, args[i]);
+            }
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                double latitude = result.getDouble(4);
+                double longitude = result.getDouble(5);
+                double meters = GeoHash.distanceMeters(Fixtures.LATITUDE, Fixtures.LONGITUDE, latitude, longitude);
+                if (meters > QUERY_RADIUS_METERS) {
+                    continue;
+                }
+                inRadius.add(result.getString(1), result.getString(2), latitude, longitude,
+                        result.getString(3), VenueColumns.OPEN_UNKNOWN, result.getString(6));
+            }
+            result.close();
+        } finally {
+            statement.close();
+        }
+
+        VenueRanker ranker = new VenueRanker();
+        ranker.reset(inRadius.size());
+        for (int i = 0; i < inRadius.size(); ++i) {
+            ranker.setVenue(i, inRadius.getLatitude(i), inRadius.getLongitude(i));
+        }
+        ranker.rank(Fixtures.LATITUDE, Fixtures.LONGITUDE, false);
+
+        int count = Math.min(QUERY_LIMIT, inRadius.size());
+        VenueColumns restaurants = new VenueColumns(count);
+        for (int rank = 0; rank < count; ++rank) {
+            int venue = ranker.venueAt(rank);
+            restaurants.setDistance(restaurants.add(inRadius, venue), (float) (ranker.distanceOf(venue) / 1609));
+        }
+        return restaurants;
+    }
+
+    /**
+     * The search run for one keystroke, which has to stay well inside a frame
+     */
+    @Benchmark
+    public VenueColumns searchPrefix() throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(Database.VENUE_SEARCH);
+        VenueColumns candidates = new VenueColumns(Database.SEARCH_CANDIDATE_LIMIT);
+        final double[] scores = new double[Database.SEARCH_CANDIDATE_LIMIT];
+        try {
+            String[] args = Database.searchArgs(Database.searchMatch("piz"), Fixtures.LATITUDE, Fixtures.LONGITUDE,
+                    Database.SEARCH_CANDIDATE_LIMIT);
+            for (int i = 0; i < args.length; ++i) {
+                statement.setString(i + 1, args[i]);
+            }
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                double latitude = result.getDouble(4);
+                double longitude = result.getDouble(5);
+                double miles = GeoHash.distanceMeters(Fixtures.LATITUDE, Fixtures.LONGITUDE, latitude, longitude) / 1609;
+                int index = candidates.add(result.getString(1), result.getString(2), latitude, longitude,
+                        result.getString(3), VenueColumns.OPEN_UNKNOWN, result.getString(6));
+                candidates.setDistance(index, (float) miles);
+                scores[index] = Database.searchScore(result.getBytes(7), miles);
+            }
+            result.close();
+        } finally {
+            statement.close();
+        }
+
+        Integer[] order = new Integer[candidates.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(scores[b], scores[a]);
+            }
+        });
+
+        int count = Math.min(QUERY_LIMIT, order.length);
+        VenueColumns restaurants = new VenueColumns(count);
+        for (int i = 0; i < count; ++i) {
+            restaurants.add(candidates, order[i]);
+        }
+        return restaurants;
+    }
+
+    /**
+     * The same statements as Database.writeVenues, in one transaction
+     * @return Number of rows written
+     */
+    private int writeVenues(VenueColumns restaurants) throws SQLException {
+        int written = 0;
+        long now = System.currentTimeMillis();
+        connection.setAutoCommit(false);
+        PreparedStatement stateStatement = connection.prepareStatement(Database.VENUE_STATE_QUERY);
+        PreparedStatement upsertStatement = connection.prepareStatement(Database.VENUE_UPSERT);
+        PreparedStatement touchStatement = connection.prepareStatement(Database.VENUE_TOUCH_FETCHED);
+        try {
+            VenueColumns.View restaurant = restaurants.view();
+            for (int i = 0; i < restaurants.size(); ++i) {
+                restaurant.moveTo(i);
+                stateStatement.setString(1, restaurant.getName());
+                stateStatement.setString(2, restaurant.getCategory());
+                stateStatement.setDouble(3, restaurant.getLatitude());
+                stateStatement.setDouble(4, restaurant.getLongitude());
+                stateStatement.setString(5, restaurant.getPhotoURL());
+                stateStatement.setString(6, restaurant.getId());
+                ResultSet state = stateStatement.executeQuery();
+                long venueState = state.next() ? state.getLong(1) : Database.VENUE_MISSING;
+                state.close();
+                if (venueState == Database.VENUE_UNCHANGED) {
+                    touchStatement.setLong(1, now);
+                    touchStatement.setLong(2, now);
+                    touchStatement.setString(3, restaurant.getId());
+                    touchStatement.executeUpdate();
+                    continue;
+                }
+
+                upsertStatement.setString(1, restaurant.getId());
+                upsertStatement.setString(2, restaurant.getName());
+                upsertStatement.setString(3, restaurant.getCategory());
+                upsertStatement.setDouble(4, restaurant.getLatitude());
+                upsertStatement.setDouble(5, restaurant.getLongitude());
+                upsertStatement.setString(6, restaurant.getPhotoURL());
+                upsertStatement.setString(7, GeoHash.encode(restaurant.getLatitude(), restaurant.getLongitude(),
+                        Database.GEOHASH_PRECISION));
+                upsertStatement.setLong(8, now);
+                upsertStatement.setLong(9, now);
+                upsertStatement.executeUpdate();
+                ++written;
+            }
+            connection.commit();
+        } finally {
+            stateStatement.close();
+            upsertStatement.close();
+            touchStatement.close();
+            connection.setAutoCommit(true);
+        }
+        return written;
+    }
+}